@@ -47,7 +47,9 @@ import org.elasticsearch.cluster.health.ClusterHealthStatus;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.quartz.JobDataMap;
 import org.quartz.JobDetail;
@@ -58,14 +60,21 @@ import org.quartz.impl.StdSchedulerFactory;
 
 import de.saly.elasticsearch.importer.imap.ldap.ILoginSource;
 import de.saly.elasticsearch.importer.imap.ldap.LdapLoginSource;
+import de.saly.elasticsearch.importer.imap.maildestination.AttachmentStore;
 import de.saly.elasticsearch.importer.imap.maildestination.ElasticsearchBulkMailDestination;
+import de.saly.elasticsearch.importer.imap.maildestination.IndexingPipeline;
 import de.saly.elasticsearch.importer.imap.maildestination.MailDestination;
+import de.saly.elasticsearch.importer.imap.mailsource.IdlePushIMAPMailSource;
 import de.saly.elasticsearch.importer.imap.mailsource.MailSource;
 import de.saly.elasticsearch.importer.imap.mailsource.ParallelPollingIMAPMailSource;
 import de.saly.elasticsearch.importer.imap.mailsource.ParallelPollingPOPMailSource;
 import de.saly.elasticsearch.importer.imap.state.ElasticsearchStateManager;
 import de.saly.elasticsearch.importer.imap.state.StateManager;
+import de.saly.elasticsearch.importer.imap.support.AttachmentFilter;
+import de.saly.elasticsearch.importer.imap.support.ByteBudget;
+import de.saly.elasticsearch.importer.imap.support.FairWorkerPool;
 import de.saly.elasticsearch.importer.imap.support.MailFlowJob;
+import de.saly.elasticsearch.importer.imap.support.StorePool;
 
 public class IMAPImporter {
 
@@ -101,6 +110,10 @@ public class IMAPImporter {
 
     private final List<String> headersToFields;
 
+    private final FairWorkerPool workerPool;
+
+    private IndexingPipeline pipeline;
+
     public IMAPImporter(final Map<String, Object> imapSettings, final Client client) {
         
         this.client = client;
@@ -127,8 +140,55 @@ public class IMAPImporter {
         final TimeValue flushInterval = XContentMapValues.nodeTimeValue(imapSettings.get("bulk_flush_interval"),
                 TimeValue.timeValueSeconds(5));
 
+        // shared by all users, documents waiting for the bulk processor or in flight must not exceed this
+        final ByteSizeValue maxPendingBulkBytes = ByteSizeValue.parseBytesSizeValue(
+                XContentMapValues.nodeStringValue(imapSettings.get("max_pending_bulk_bytes"), null),
+                new ByteSizeValue(Runtime.getRuntime().maxMemory() / 10), "max_pending_bulk_bytes");
+
+        final ByteBudget byteBudget = new ByteBudget(maxPendingBulkBytes.bytes());
+
+        final boolean stagedIndexing = XContentMapValues.nodeBooleanValue(imapSettings.get("staged_indexing"), false);
+
+        if (stagedIndexing) {
+            final int parseThreads = XContentMapValues.nodeIntegerValue(imapSettings.get("parse_threads"), Runtime.getRuntime()
+                    .availableProcessors());
+            final int indexThreads = XContentMapValues.nodeIntegerValue(imapSettings.get("index_threads"), 2);
+            final int pipelineQueueSize = XContentMapValues.nodeIntegerValue(imapSettings.get("pipeline_queue_size"), 1000);
+            final ByteSizeValue pipelineQueueBytes = ByteSizeValue.parseBytesSizeValue(
+                    XContentMapValues.nodeStringValue(imapSettings.get("pipeline_queue_bytes"), null),
+                    new ByteSizeValue(Runtime.getRuntime().maxMemory() / 10), "pipeline_queue_bytes");
+            pipeline = new IndexingPipeline(parseThreads, indexThreads, pipelineQueueSize, new ByteBudget(pipelineQueueBytes.bytes()));
+        }
+
         final int threads = XContentMapValues.nodeIntegerValue(imapSettings.get("threads"), 5);
 
+        final int uidChunkSize = XContentMapValues.nodeIntegerValue(imapSettings.get("uid_chunk_size"), 100);
+
+        final int maxParallelFolders = XContentMapValues.nodeIntegerValue(imapSettings.get("max_parallel_folders"), 1);
+
+        final int fetchWindowSize = XContentMapValues.nodeIntegerValue(imapSettings.get("fetch_window_size"), 500);
+
+        // persist the progress of long running syncs so a restart can resume
+        final int checkpointMessages = XContentMapValues.nodeIntegerValue(imapSettings.get("checkpoint_messages"), 10000);
+
+        final TimeValue checkpointInterval = XContentMapValues.nodeTimeValue(imapSettings.get("checkpoint_interval"),
+                TimeValue.timeValueMinutes(1));
+
+        final int connectionPoolSize = XContentMapValues.nodeIntegerValue(imapSettings.get("connection_pool_size"), Math.max(threads, 1)
+                + Math.max(maxParallelFolders, 1));
+
+        // all mailboxes share these threads, more than the connection budget of all mailboxes would just idle
+        final int workerThreads = XContentMapValues.nodeIntegerValue(imapSettings.get("worker_threads"),
+                Math.min(Math.max(users.size(), 1) * connectionPoolSize, Runtime.getRuntime().availableProcessors() * 8));
+
+        workerPool = new FairWorkerPool(workerThreads);
+
+        final TimeValue connectionMaxIdle = XContentMapValues.nodeTimeValue(imapSettings.get("connection_pool_max_idle"),
+                TimeValue.timeValueMinutes(5));
+
+        final TimeValue connectionKeepAlive = XContentMapValues.nodeTimeValue(imapSettings.get("connection_pool_keepalive"),
+                TimeValue.timeValueSeconds(60));
+
         final boolean withTextContent = XContentMapValues.nodeBooleanValue(imapSettings.get("with_text_content"), true);
 
         final boolean withHtmlContent = XContentMapValues.nodeBooleanValue(imapSettings.get("with_html_content"), false);
@@ -137,11 +197,42 @@ public class IMAPImporter {
 
         final boolean withFlagSync = XContentMapValues.nodeBooleanValue(imapSettings.get("with_flag_sync"), true);
 
+        final boolean withCondstore = XContentMapValues.nodeBooleanValue(imapSettings.get("with_condstore"), true);
+
+        final boolean withIdle = XContentMapValues.nodeBooleanValue(imapSettings.get("with_idle"), false);
+
+        final List<String> idleFolders = imapSettings.containsKey("idle_folders") ? arrayNodeToList(imapSettings.get("idle_folders"))
+                : Collections.singletonList("INBOX");
+
+        final TimeValue idleKeepAlive = XContentMapValues.nodeTimeValue(imapSettings.get("idle_keepalive"), TimeValue.timeValueMinutes(10));
+
         final boolean withAttachments = XContentMapValues.nodeBooleanValue(imapSettings.get("with_attachments"), false);
 
+        // checked against the BODYSTRUCTURE before the attachment is downloaded
+        final List<String> attachmentMimeTypes = arrayNodeToList(imapSettings.get("attachment_mime_types"));
+
+        final String attachmentMaxSize = XContentMapValues.nodeStringValue(imapSettings.get("attachment_max_size"), null);
+
+        final AttachmentFilter attachmentFilter = new AttachmentFilter(attachmentMimeTypes, attachmentMaxSize == null ? -1
+                : ByteSizeValue.parseBytesSizeValue(attachmentMaxSize, "attachment_max_size").bytes());
+
+        // one store for all users, so the same attachment is only stored once
+        final boolean attachmentDedup = XContentMapValues.nodeBooleanValue(imapSettings.get("attachment_dedup"), false);
+
+        final AttachmentStore attachmentStore = withAttachments && attachmentDedup ? new AttachmentStore(client,
+                XContentMapValues.nodeStringValue(imapSettings.get("attachment_index_name"), indexName + "-attachments"),
+                XContentMapValues.nodeIntegerValue(imapSettings.get("attachment_hash_cache_size"), 10000)) : null;
+
         final boolean stripTagsFromTextContent = XContentMapValues.nodeBooleanValue(imapSettings.get("with_striptags_from_textcontent"),
                 true);
         
+        final XContentType sourceContentType = XContentType.fromRestContentType(XContentMapValues.nodeStringValue(
+                imapSettings.get("source_format"), "json"));
+
+        if (sourceContentType != XContentType.JSON && sourceContentType != XContentType.SMILE) {
+            throw new IllegalArgumentException("source_format must be json or smile");
+        }
+
         final boolean keepExpungedMessages = XContentMapValues.nodeBooleanValue(imapSettings.get("keep_expunged_messages"), false);
 
         // get two maps from the river settings to improve index creation
@@ -191,17 +282,29 @@ public class IMAPImporter {
             
             MailSource mailSource = null;
             
-            MailDestination mailDestination = new ElasticsearchBulkMailDestination().maxBulkActions(bulkSize).maxConcurrentBulkRequests(maxBulkRequests)
+            MailDestination mailDestination = new ElasticsearchBulkMailDestination().maxBulkActions(bulkSize).maxConcurrentBulkRequests(maxBulkRequests).byteBudget(byteBudget).pipeline(pipeline)
                     .flushInterval(flushInterval).client(client).setMapping(typeMapping).setSettings(indexSettings).setType(typeName) //+user???
                     .setIndex(_indexName).setWithAttachments(withAttachments).setWithTextContent(withTextContent).setWithHtmlContent(withHtmlContent)
-                    .setPreferHtmlContent(preferHtmlContent).setStripTagsFromTextContent(stripTagsFromTextContent).setHeadersToFields(headersToFields);
-            if (props.getProperty("mail.store.protocol").toLowerCase().contains("imap")) {
-                mailSource = new ParallelPollingIMAPMailSource(props, threads, user, password).setWithFlagSync(withFlagSync);
+                    .setPreferHtmlContent(preferHtmlContent).setStripTagsFromTextContent(stripTagsFromTextContent)
+                    .setAttachmentFilter(attachmentFilter).setSourceContentType(sourceContentType).setAttachmentStore(attachmentStore)
+                    .setHeadersToFields(headersToFields);
+            if (props.getProperty("mail.store.protocol").toLowerCase().contains("imap") && withIdle) {
+                mailSource = new IdlePushIMAPMailSource(props, threads, user, password, idleFolders).setKeepAliveInterval(idleKeepAlive)
+                        .setWithFlagSync(withFlagSync).setWithCondstore(withCondstore).setUidChunkSize(uidChunkSize)
+                        .setMaxParallelFolders(maxParallelFolders).setCheckpointMessages(checkpointMessages)
+                        .setCheckpointInterval(checkpointInterval);
+            } else if (props.getProperty("mail.store.protocol").toLowerCase().contains("imap")) {
+                mailSource = new ParallelPollingIMAPMailSource(props, threads, user, password).setWithFlagSync(withFlagSync)
+                        .setWithCondstore(withCondstore).setUidChunkSize(uidChunkSize).setMaxParallelFolders(maxParallelFolders)
+                        .setCheckpointMessages(checkpointMessages).setCheckpointInterval(checkpointInterval);
             } else {
-                mailSource = new ParallelPollingPOPMailSource(props, threads, user, password);
+                mailSource = new ParallelPollingPOPMailSource(props, threads, user, password).setFetchWindowSize(fetchWindowSize);
             }
     
             mailSource.setDeleteExpungedMessages(!keepExpungedMessages);
+            mailSource.setExecutorService(workerPool.newMailboxExecutor(user, connectionPoolSize));
+            mailSource.setStorePool(new StorePool(props, user, password).maxSize(connectionPoolSize).maxIdle(connectionMaxIdle)
+                    .keepAliveInterval(connectionKeepAlive));
             mailSource.setMailDestination(mailDestination);
             mailSource.setStateManager(riverStateManager);
             mailSources.add(mailSource);
@@ -221,7 +324,21 @@ public class IMAPImporter {
 
         try {
             if (sched != null && sched.isStarted()) {
-                sched.shutdown();
+                // no new jobs, the running ones stop when their mail source is closed below
+                sched.standby();
+            }
+        } catch (final SchedulerException e) {
+            logger.warn("Unable to pause scheduler due to " + e, e);
+        }
+
+        for (final MailSource mailSource : mailSources) {
+            mailSource.close();
+        }
+
+        try {
+            if (sched != null && !sched.isShutdown()) {
+                // wait for running jobs, they must not submit to a closed pipeline or destination
+                sched.shutdown(true);
                 logger.info("Scheduler shutted down");
             }
         } catch (final SchedulerException e) {
@@ -229,14 +346,17 @@ public class IMAPImporter {
 
         }
         
-        for(int i=0;i<mailSources.size();i++) {
-                    
-            MailSource mailSource = mailSources.get(i);
+        if (pipeline != null) {
+            // hand over everything which is already fetched to the bulk processors before they are closed
+            pipeline.close();
+        }
+
+        for (final MailSource mailSource : mailSources) {
             mailSource.getMailDestination().close();
-            mailSource.close();
-                    
         }
 
+        workerPool.shutdown();
+
         logger.info("IMAP importer closed");
     }
 
@@ -326,6 +446,13 @@ public class IMAPImporter {
             }
 
             sched.start();
+
+            for(int i=0;i<mailSources.size();i++) {
+                if (mailSources.get(i) instanceof IdlePushIMAPMailSource) {
+                    ((IdlePushIMAPMailSource) mailSources.get(i)).startIdle();
+                }
+            }
+
             logger.info("IMAP importer started");
 
         } catch (final Exception e) {
@@ -0,0 +1,187 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.importer.imap.maildestination;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexRequest.OpType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+
+import de.saly.elasticsearch.importer.imap.impl.IMAPImporter;
+import de.saly.elasticsearch.importer.imap.support.IndexableMailMessage.ESAttachment;
+
+/**
+ * Stores the content of attachments once per SHA-256 hash in a separate index which is shared by all users, the mail
+ * documents only keep hash, filename, size and content type. The hashes which are known to be stored are kept in a LRU
+ * cache, for all others a realtime get is done before the content is sent. So the same content is transferred and
+ * parsed by the mapper attachments plugin only once.
+ */
+public class AttachmentStore {
+
+    public static final String TYPE = "attachment";
+
+    private final Client client;
+    private final String index;
+    private final Map<String, Boolean> knownHashes;
+    private volatile boolean initialized;
+    protected final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
+
+    /**
+     * @param cacheSize how many hashes of stored attachments are remembered
+     */
+    public AttachmentStore(final Client client, final String index, final int cacheSize) {
+        super();
+        this.client = client;
+        this.index = index;
+        this.knownHashes = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * The hash of the attachment must already be computed, see {@link ESAttachment#computeHash()}
+     * 
+     * @return the request which stores the content or null if the content is already stored
+     */
+    public IndexRequest createIndexRequest(final ESAttachment attachment, final XContentType contentType) throws IOException {
+
+        final String hash = attachment.getHash();
+
+        if (hash == null) {
+            return null;
+        }
+
+        createIndexIfNotExists();
+
+        synchronized (knownHashes) {
+            if (knownHashes.get(hash) != null) {
+                return null;
+            }
+        }
+
+        if (client.prepareGet(index, TYPE, hash).setFetchSource(false).setRealtime(true).get().isExists()) {
+            if (logger.isTraceEnabled()) {
+                logger.trace("Attachment {} already stored", hash);
+            }
+            onStored(hash);
+            return null;
+        }
+
+        final XContentBuilder builder = XContentFactory.contentBuilder(contentType).startObject()
+                .field("content", attachment.getContent()).field("contentType", attachment.getContentType())
+                .field("size", attachment.getSize()).endObject();
+
+        // two messages with the same attachment can be processed at the same time, the second create fails
+        return Requests.indexRequest(index).type(TYPE).id(hash).opType(OpType.CREATE).source(builder);
+    }
+
+    /**
+     * Remember that the content with this hash is stored, must only be called after the index request succeeded (or
+     * failed because the document already exists)
+     */
+    public void onStored(final String hash) {
+        synchronized (knownHashes) {
+            knownHashes.put(hash, Boolean.TRUE);
+        }
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        synchronized (knownHashes) {
+            return "AttachmentStore [index=" + index + ", knownHashes=" + knownHashes.size() + "]";
+        }
+    }
+
+    private synchronized void createIndexIfNotExists() throws IOException {
+
+        if (initialized) {
+            return;
+        }
+
+        IMAPImporter.waitForYellowCluster(client);
+
+        if (!client.admin().indices().prepareExists(index).execute().actionGet().isExists()) {
+
+            try {
+                final CreateIndexResponse res = client.admin().indices().prepareCreate(index).addMapping(TYPE, getMapping()).get();
+
+                if (!res.isAcknowledged()) {
+                    throw new IOException("Could not create index " + index);
+                }
+
+                IMAPImporter.waitForYellowCluster(client);
+
+                logger.info("Attachment index {} created", index);
+
+            } catch (final IndexAlreadyExistsException e) {
+                // created by another node in the meantime
+                logger.debug("Attachment index {} already exists", index);
+            }
+
+        } else {
+            logger.debug("Attachment index {} already exists", index);
+        }
+
+        initialized = true;
+    }
+
+    private XContentBuilder getMapping() throws IOException {
+        return jsonBuilder().startObject().startObject(TYPE).startObject("properties")
+                .startObject("content")
+                    .field("type", "attachment")
+                    .startObject("fields")
+                        .startObject("content").field("store", true).field("index", "analyzed").endObject()
+                        .startObject("content_type").field("store", true).endObject()
+                    .endObject()
+                .endObject()
+                .startObject("contentType").field("index", "not_analyzed").field("type", "string").endObject()
+                .startObject("size").field("type", "long").endObject()
+                .endObject().endObject().endObject();
+    }
+}
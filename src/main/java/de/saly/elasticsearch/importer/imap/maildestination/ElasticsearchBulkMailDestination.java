@@ -26,18 +26,26 @@
 package de.saly.elasticsearch.importer.imap.maildestination;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
 
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
 
+import de.saly.elasticsearch.importer.imap.support.ByteBudget;
 import de.saly.elasticsearch.importer.imap.support.IndexableMailMessage;
 
 public class ElasticsearchBulkMailDestination extends ElasticsearchMailDestination {
@@ -47,6 +55,10 @@ public class ElasticsearchBulkMailDestination extends ElasticsearchMailDestinati
 
     private BulkProcessor bulk;
 
+    private ByteBudget byteBudget;
+
+    private IndexingPipeline pipeline;
+
     private TimeValue flushInterval = TimeValue.timeValueSeconds(5);
 
     private final BulkProcessor.Listener listener = new BulkProcessor.Listener() {
@@ -55,16 +67,30 @@ public class ElasticsearchBulkMailDestination extends ElasticsearchMailDestinati
         public void afterBulk(final long executionId, final BulkRequest request, final BulkResponse response) {
             final long l = outstandingBulkRequests.decrementAndGet();
             final int cur = queue.addAndGet(-response.getItems().length);
+            release(request);
+            markDirty();
+            notifyItems(request, response);
             logger.info("Bulk actions done successfully [{}] success [{} items] [{}ms], {} outstanding bulk requests, queue size is {}",
                     executionId, response.getItems().length, response.getTookInMillis(), l, cur);
 
+            if (byteBudget != null && logger.isDebugEnabled()) {
+                logger.debug("Pending bulk bytes {}", byteBudget);
+            }
+
+            if (pipeline != null && logger.isDebugEnabled()) {
+                logger.debug("{}", pipeline);
+            }
+
         }
 
         @Override
         public void afterBulk(final long executionId, final BulkRequest request, final Throwable failure) {
             final long l = outstandingBulkRequests.decrementAndGet();
+            queue.addAndGet(-request.numberOfActions());
+            release(request);
             logger.error("Bulk actions done with errors [" + executionId + "] error, {} outstanding bulk requests", failure, l);
             setError(true);
+            notifyItems(request, failure);
         }
 
         @Override
@@ -116,6 +142,22 @@ public class ElasticsearchBulkMailDestination extends ElasticsearchMailDestinati
 
     }
 
+    /**
+     * Limit the bytes of documents which are queued or in flight, onMessage() blocks if the limit is reached
+     */
+    public ElasticsearchBulkMailDestination byteBudget(final ByteBudget byteBudget) {
+        this.byteBudget = byteBudget;
+        return this;
+    }
+
+    /**
+     * Serialize and index the messages asynchronously in the stages of the given pipeline
+     */
+    public ElasticsearchBulkMailDestination pipeline(final IndexingPipeline pipeline) {
+        this.pipeline = pipeline;
+        return this;
+    }
+
     public ElasticsearchBulkMailDestination flushInterval(final TimeValue flushInterval) {
 
         this.flushInterval = flushInterval;
@@ -149,21 +191,105 @@ public class ElasticsearchBulkMailDestination extends ElasticsearchMailDestinati
             return;
         }
 
+        final long start = System.nanoTime();
+
+        // with a pipeline tags are stripped in the parse stage
         final IndexableMailMessage imsg = IndexableMailMessage.fromJavaMailMessage(msg, isWithTextContent(), isWithHtmlContent(), isPreferHtmlContent(), isWithAttachments(),
-                isStripTagsFromTextContent(), getHeadersToFields());
+                pipeline == null && isStripTagsFromTextContent(), getHeaderSelector(), getAttachmentFilter());
 
         if (logger.isTraceEnabled()) {
             logger.trace("Bulk process mail " + imsg.getUid() + "/" + imsg.getPopId() + " :: " + imsg.getSubject() + "/"
                     + imsg.getSentDate());
         }
 
-        // following block not needs to be synchronized
-        try {
+        if (pipeline != null) {
+            // the parse stage must not touch the folder
+            imsg.loadAttachments();
+            pipeline.fetched(start);
+
+            // a RejectedExecutionException is passed on, the mail source must not treat the message as processed
+            pipeline.submit(imsg, this);
+
+            return;
+        }
+
+        storeAttachments(imsg);
+        addToBulk(createIndexRequest(imsg));
+    }
+
+    /**
+     * Parse stage of the pipeline
+     */
+    IndexRequest createIndexRequestForPipeline(final IndexableMailMessage imsg) throws IOException {
+
+        if (isStripTagsFromTextContent()) {
+            imsg.setTextContent(IndexableMailMessage.stripTags(imsg.getTextContent()));
+        }
+
+        storeAttachments(imsg);
+
+        return createIndexRequest(imsg);
+    }
+
+    /**
+     * The attachment goes into the same bulk as the mail, if another message stored it concurrently only this bulk
+     * item fails. The hash is remembered as stored once the bulk item is done.
+     */
+    @Override
+    protected void indexAttachment(final IndexRequest request) throws IOException {
+
+        final String hash = request.id();
+
+        addToBulk(request, new ItemCallback() {
+
+            @Override
+            public void onItemResponse(final BulkItemResponse item) {
 
-            if (!isClosed()) {
-                bulk.add(createIndexRequest(imsg));
-                queue.incrementAndGet();
+                if (!item.isFailed() || item.getFailure().getStatus() == RestStatus.CONFLICT) {
+                    getAttachmentStore().onStored(hash);
+                } else {
+                    logger.error("Unable to store attachment {} due to {}", hash, item.getFailureMessage());
+                }
             }
+
+            @Override
+            public void onItemFailure(final Throwable failure) {
+                // already logged for the whole bulk
+            }
+        });
+    }
+
+    /**
+     * Deletes go through the same bulk processor as the index requests, but the caller waits until they are done so
+     * that a failure is reported (the state of the folder must not move on if messages could not be deleted)
+     */
+    @Override
+    protected void deleteMessages(final List<String> ids) throws IOException {
+
+        final PendingDeletes pending = new PendingDeletes(ids.size());
+
+        for (final String id : ids) {
+            try {
+                if (!addToBulk(new DeleteRequest(getIndex(), getType(), id), pending)) {
+                    pending.onItemFailure(null);
+                }
+            } catch (final RuntimeException e) {
+                pending.onItemFailure(e);
+            }
+        }
+
+        bulk.flush();
+        pending.await();
+    }
+
+    /**
+     * Index stage of the pipeline
+     */
+    void addToBulk(final ActionRequest<?> request) {
+
+        // following block not needs to be synchronized
+        try {
+            addToBulk(request, null);
         } catch (final Exception e) { // TODO 2.0 was ElasticsearchIllegalStateException
 
             if (isClosed()) {
@@ -175,4 +301,154 @@ public class ElasticsearchBulkMailDestination extends ElasticsearchMailDestinati
 
     }
 
+    /**
+     * @param callback notified about the outcome of the bulk item, may be null
+     * @return false if closed
+     */
+    private boolean addToBulk(final ActionRequest<?> request, final ItemCallback callback) throws IOException {
+
+        if (isClosed()) {
+            return false;
+        }
+
+        acquire(request);
+
+        try {
+            bulk.add(request, callback);
+            queue.incrementAndGet();
+        } catch (final RuntimeException e) {
+            releaseRequest(request);
+            throw e;
+        }
+
+        return true;
+    }
+
+    private static void notifyItems(final BulkRequest request, final BulkResponse response) {
+
+        final List<Object> payloads = request.payloads();
+
+        if (payloads == null) {
+            return;
+        }
+
+        for (final BulkItemResponse item : response) {
+            final Object payload = payloads.get(item.getItemId());
+
+            if (payload instanceof ItemCallback) {
+                ((ItemCallback) payload).onItemResponse(item);
+            }
+        }
+    }
+
+    private static void notifyItems(final BulkRequest request, final Throwable failure) {
+
+        final List<Object> payloads = request.payloads();
+
+        if (payloads == null) {
+            return;
+        }
+
+        for (final Object payload : payloads) {
+            if (payload instanceof ItemCallback) {
+                ((ItemCallback) payload).onItemFailure(failure);
+            }
+        }
+    }
+
+    private void acquire(final ActionRequest<?> request) throws IOException {
+
+        // deletes are tiny
+        if (byteBudget == null || !(request instanceof IndexRequest)) {
+            return;
+        }
+
+        final long size = ((IndexRequest) request).source().length();
+
+        if (!byteBudget.tryAcquire(size)) {
+
+            // pending documents may wait for a full bulk, send them now so that their bytes can be released
+            bulk.flush();
+
+            try {
+                byteBudget.acquire(size);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for bulk capacity", e);
+            }
+        }
+    }
+
+    private void release(final BulkRequest request) {
+
+        if (byteBudget == null) {
+            return;
+        }
+
+        for (final ActionRequest<?> r : request.requests()) {
+            releaseRequest(r);
+        }
+    }
+
+    private void releaseRequest(final ActionRequest<?> request) {
+        if (byteBudget != null && request instanceof IndexRequest) {
+            byteBudget.release(((IndexRequest) request).source().length());
+        }
+    }
+
+    /**
+     * Payload of a bulk item which needs to know whether its request succeeded
+     */
+    interface ItemCallback {
+
+        void onItemResponse(BulkItemResponse item);
+
+        /**
+         * @param failure the reason why the whole bulk failed, null if the item could not be added
+         */
+        void onItemFailure(Throwable failure);
+    }
+
+    private static class PendingDeletes implements ItemCallback {
+
+        private final CountDownLatch done;
+        private final AtomicInteger failed = new AtomicInteger();
+        private final int count;
+
+        PendingDeletes(final int count) {
+            this.count = count;
+            this.done = new CountDownLatch(count);
+        }
+
+        @Override
+        public void onItemResponse(final BulkItemResponse item) {
+            // a message which is already gone is not a failure
+            if (item.isFailed()) {
+                failed.incrementAndGet();
+            }
+
+            done.countDown();
+        }
+
+        @Override
+        public void onItemFailure(final Throwable failure) {
+            failed.incrementAndGet();
+            done.countDown();
+        }
+
+        void await() throws IOException {
+
+            try {
+                done.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for deletes", e);
+            }
+
+            if (failed.get() > 0) {
+                throw new IOException("Unable to delete " + failed.get() + " of " + count + " messages");
+            }
+        }
+    }
+
 }
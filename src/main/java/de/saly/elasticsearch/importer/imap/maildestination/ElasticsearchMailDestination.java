@@ -28,44 +28,68 @@ package de.saly.elasticsearch.importer.imap.maildestination;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.Store;
 
 import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
 import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
-import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.Requests;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.engine.DocumentAlreadyExistsException;
 import org.elasticsearch.index.get.GetField;
-import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.TermQueryBuilder;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.sort.SortOrder;
 
 import com.sun.mail.imap.IMAPFolder;
-import com.sun.mail.pop3.POP3Folder;
 
 import de.saly.elasticsearch.importer.imap.impl.IMAPImporter;
+import de.saly.elasticsearch.importer.imap.support.AttachmentFilter;
 import de.saly.elasticsearch.importer.imap.support.DeleteByQuery;
+import de.saly.elasticsearch.importer.imap.support.HeaderSelector;
 import de.saly.elasticsearch.importer.imap.support.IndexableMailMessage;
+import de.saly.elasticsearch.importer.imap.support.IndexableMailMessage.ESAttachment;
+import de.saly.elasticsearch.importer.imap.support.UidSet;
 
 public class ElasticsearchMailDestination implements MailDestination {
 
+    // hits per scroll page
+    private static final int SCROLL_PAGE_SIZE = 5000;
+
+    private static final TimeValue SCROLL_KEEPALIVE = TimeValue.timeValueMinutes(1);
+
     private Client client;
 
     private volatile boolean closed;
@@ -96,6 +120,19 @@ public class ElasticsearchMailDestination implements MailDestination {
 
     private List<String> headersToFields;
 
+    private HeaderSelector headerSelector = HeaderSelector.NONE;
+
+    private AttachmentFilter attachmentFilter = AttachmentFilter.ACCEPT_ALL;
+
+    private XContentType sourceContentType = XContentType.JSON;
+
+    private AttachmentStore attachmentStore;
+
+    // true if something was written since the last refresh
+    private final AtomicBoolean dirty = new AtomicBoolean(true);
+
+    private final Object refreshLock = new Object();
+
     protected final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
 
     @Override
@@ -104,13 +141,20 @@ public class ElasticsearchMailDestination implements MailDestination {
         logger.info("Delete locally all messages for folder {} in {}/{}",folder.getURLName().toString(), index, type);
 
         createIndexIfNotExists();
-        
-        client.admin().indices().refresh(new RefreshRequest()).actionGet();
-        
+
         DeleteByQuery.deleteByQuery(client, index, new String[]{type}, QueryBuilders.termQuery("folderUri", folder.getURLName().toString()));
+        markDirty();
 
     }
 
+    @Override
+    public void beginFolderSync(final Folder folder) throws IOException, MessagingException {
+
+        createIndexIfNotExists();
+
+        refreshIfDirty();
+    }
+
     public ElasticsearchMailDestination client(final Client client) {
         this.client = client;
         return this;
@@ -132,9 +176,19 @@ public class ElasticsearchMailDestination implements MailDestination {
     @Override
     public Set getCurrentlyStoredMessageUids(final Folder folder) throws IOException, MessagingException {
 
+        if (folder instanceof IMAPFolder) {
+
+            final UidSet uidSet = getCurrentlyStoredMessageUidSet(folder);
+            final Set uids = new HashSet(uidSet.size() * 2);
+
+            for (int i = 0; i < uidSet.size(); i++) {
+                uids.add(uidSet.get(i));
+            }
+
+            return uids;
+        }
+
         createIndexIfNotExists();
-        
-        client.admin().indices().refresh(new RefreshRequest()).actionGet();
 
         final Set uids = new HashSet();
 
@@ -142,26 +196,54 @@ public class ElasticsearchMailDestination implements MailDestination {
 
         logger.debug("Term query: " + b.buildAsBytes().toUtf8());
 
-        SearchResponse scrollResp = client.prepareSearch().setIndices(index).setTypes(type).setSearchType(SearchType.SCAN).setQuery(b)
-                .setScroll(new TimeValue(1000)).setSize(1000).execute().actionGet();
-
-        while (true) {
-            scrollResp = client.prepareSearchScroll(scrollResp.getScrollId()).setScroll(new TimeValue(1000)).execute().actionGet();
-            boolean hitsRead = false;
-            for (final SearchHit hit : scrollResp.getHits()) {
-                hitsRead = true;
+        // popId is an analyzed string by default, so it is taken from the id
+        SearchResponse scrollResp = client.prepareSearch().setIndices(index).setTypes(type).addSort("_doc", SortOrder.ASC).setQuery(b)
+                .setFetchSource(false).setNoFields().setScroll(SCROLL_KEEPALIVE).setSize(SCROLL_PAGE_SIZE).execute().actionGet();
 
-                if (folder instanceof IMAPFolder) {
-                    uids.add(Long.parseLong(hit.getId().split("::")[0]));
-                } else {
-                    uids.add(hit.getId().split("::")[0]);
+        try {
+            // unlike a scan the first response already contains hits
+            while (scrollResp.getHits().getHits().length > 0) {
+                for (final SearchHit hit : scrollResp.getHits()) {
+                    uids.add(idPrefix(hit.getId()));
                 }
-
-                logger.debug("Local: " + hit.getId());
+                scrollResp = client.prepareSearchScroll(scrollResp.getScrollId()).setScroll(SCROLL_KEEPALIVE).execute().actionGet();
             }
-            if (!hitsRead) {
-                break;
+        } finally {
+            clearScroll(scrollResp.getScrollId());
+        }
+
+        logger.debug("Currently locally stored messages for folder {}: {}", folder.getURLName(), uids.size());
+
+        return uids;
+
+    }
+
+    @Override
+    public UidSet getCurrentlyStoredMessageUidSet(final Folder folder) throws IOException, MessagingException {
+
+        createIndexIfNotExists();
+
+        final UidSet uids = new UidSet(1024);
+
+        final TermQueryBuilder b = QueryBuilders.termQuery("folderUri", folder.getURLName().toString());
+
+        logger.debug("Term query: " + b.buildAsBytes().toUtf8());
+
+        // neither source nor stored fields, the id is always loaded and reading the uid from it is cheaper than a field
+        // data field (see UidEnumerationBenchmark)
+        SearchResponse scrollResp = client.prepareSearch().setIndices(index).setTypes(type).addSort("_doc", SortOrder.ASC).setQuery(b)
+                .setFetchSource(false).setNoFields().setScroll(SCROLL_KEEPALIVE).setSize(SCROLL_PAGE_SIZE).execute().actionGet();
+
+        try {
+            // unlike a scan the first response already contains hits
+            while (scrollResp.getHits().getHits().length > 0) {
+                for (final SearchHit hit : scrollResp.getHits()) {
+                    uids.add(parseUid(hit.getId()));
+                }
+                scrollResp = client.prepareSearchScroll(scrollResp.getScrollId()).setScroll(SCROLL_KEEPALIVE).execute().actionGet();
             }
+        } finally {
+            clearScroll(scrollResp.getScrollId());
         }
 
         logger.debug("Currently locally stored messages for folder {}: {}", folder.getURLName(), uids.size());
@@ -174,9 +256,8 @@ public class ElasticsearchMailDestination implements MailDestination {
     public int getFlaghashcode(final String id) throws IOException, MessagingException {
 
         createIndexIfNotExists();
-        
-        client.admin().indices().refresh(new RefreshRequest()).actionGet();
 
+        // realtime get, no refresh needed
         final GetResponse getResponse = client.prepareGet().setIndex(index).setType(type).setId(id)
                 .setFields(new String[] { "flaghashcode" }).execute().actionGet();
 
@@ -195,31 +276,107 @@ public class ElasticsearchMailDestination implements MailDestination {
     }
 
     @Override
-    public Set<String> getFolderNames() throws IOException, MessagingException {
+    public Map<Long, Integer> getFlaghashcodes(final Folder folder, final Collection<Long> uids) throws IOException, MessagingException {
 
         createIndexIfNotExists();
-        
-        client.admin().indices().refresh(new RefreshRequest()).actionGet();
 
-        final HashSet<String> uids = new HashSet<String>();
+        final Map<Long, Integer> flaghashcodes = new HashMap<Long, Integer>(uids == null ? 1024 : uids.size() * 2);
+        final String folderUri = folder.getURLName().toString();
+
+        if (uids == null) {
+
+            // one scroll over the whole folder sorted by _doc, flaghashcode is read from doc values
+            SearchResponse scrollResp = client.prepareSearch().setIndices(index).setTypes(type).addSort("_doc", SortOrder.ASC)
+                    .setQuery(QueryBuilders.termQuery("folderUri", folderUri)).setFetchSource(false).addFieldDataField("flaghashcode")
+                    .setScroll(SCROLL_KEEPALIVE).setSize(SCROLL_PAGE_SIZE).execute().actionGet();
 
-        SearchResponse scrollResp = client.prepareSearch().setIndices(index).setTypes(type).setSearchType(SearchType.SCAN)
-                .setQuery(QueryBuilders.matchAllQuery()).addField("folderFullName").setScroll(new TimeValue(1000)).setSize(1000).execute()
-                .actionGet();
+            try {
+                // unlike a scan the first response already contains hits
+                while (scrollResp.getHits().getHits().length > 0) {
+                    for (final SearchHit hit : scrollResp.getHits()) {
+                        final SearchHitField flaghashcodeField = hit.field("flaghashcode");
 
-        while (true) {
-            scrollResp = client.prepareSearchScroll(scrollResp.getScrollId()).setScroll(new TimeValue(1000)).execute().actionGet();
-            boolean hitsRead = false;
-            for (final SearchHit hit : scrollResp.getHits()) {
-                hitsRead = true;
-                uids.add((String) hit.getFields().get("folderFullName").getValue());
+                        if (flaghashcodeField == null || !(flaghashcodeField.getValue() instanceof Number)) {
+                            logger.warn("No flaghashcode field for id {}", hit.getId());
+                            continue;
+                        }
 
+                        flaghashcodes.put(parseUid(hit.getId()), ((Number) flaghashcodeField.getValue()).intValue());
+                    }
+                    scrollResp = client.prepareSearchScroll(scrollResp.getScrollId()).setScroll(SCROLL_KEEPALIVE).execute().actionGet();
+                }
+            } finally {
+                clearScroll(scrollResp.getScrollId());
             }
-            if (!hitsRead) {
-                break;
+
+        } else {
+
+            // realtime multi get, no refresh needed
+            final List<Long> uidList = new ArrayList<Long>(uids);
+
+            for (int i = 0; i < uidList.size(); i += 1000) {
+
+                final MultiGetRequestBuilder mget = client.prepareMultiGet();
+
+                for (final Long uid : uidList.subList(i, Math.min(i + 1000, uidList.size()))) {
+                    mget.add(new MultiGetRequest.Item(index, type, uid + "::" + folderUri).fields("flaghashcode"));
+                }
+
+                final MultiGetResponse mgetResponse = mget.execute().actionGet();
+
+                for (final MultiGetItemResponse item : mgetResponse) {
+
+                    if (item.isFailed()) {
+                        throw new IOException("Unable to get flaghashcode for id " + item.getId() + " due to " + item.getFailure().getMessage());
+                    }
+
+                    final GetResponse getResponse = item.getResponse();
+
+                    if (!getResponse.isExists()) {
+                        continue;
+                    }
+
+                    final GetField flaghashcodeField = getResponse.getField("flaghashcode");
+
+                    if (flaghashcodeField == null || !(flaghashcodeField.getValue() instanceof Number)) {
+                        logger.warn("No flaghashcode field for id {}", getResponse.getId());
+                        continue;
+                    }
+
+                    flaghashcodes.put(parseUid(getResponse.getId()), ((Number) flaghashcodeField.getValue()).intValue());
+                }
             }
         }
 
+        logger.debug("Got {} flaghashcodes for folder {}", flaghashcodes.size(), folderUri);
+
+        return flaghashcodes;
+    }
+
+    @Override
+    public Set<String> getFolderNames(final Store store) throws IOException, MessagingException {
+
+        createIndexIfNotExists();
+
+        // not part of a folder sync
+        refreshIfDirty();
+
+        final HashSet<String> uids = new HashSet<String>();
+
+        // the index can be shared by several mailboxes, the uri of each folder starts with the uri of its store
+        final String storeUri = store.getURLName().toString() + "/";
+
+        // distinct values from the doc values instead of loading every document, size 0 means all terms
+        final SearchResponse response = client.prepareSearch().setIndices(index).setTypes(type).setSize(0)
+                .setQuery(QueryBuilders.constantScoreQuery(QueryBuilders.prefixQuery("folderUri", storeUri)))
+                .addAggregation(AggregationBuilders.terms("folders").field("folderFullName").size(0)).execute().actionGet();
+
+        final Terms folders = response.getAggregations().get("folders");
+
+        for (final Terms.Bucket bucket : folders.getBuckets()) {
+            uids.add(bucket.getKeyAsString());
+        }
+
         if (logger.isDebugEnabled()) {
             logger.debug("Currently locally stored folders: {}", uids);
         }
@@ -228,6 +385,18 @@ public class ElasticsearchMailDestination implements MailDestination {
 
     }
 
+    public AttachmentFilter getAttachmentFilter() {
+        return attachmentFilter;
+    }
+
+    public AttachmentStore getAttachmentStore() {
+        return attachmentStore;
+    }
+
+    public HeaderSelector getHeaderSelector() {
+        return headerSelector;
+    }
+
     public List<String> getHeadersToFields() {
         return headersToFields;
     }
@@ -271,13 +440,16 @@ public class ElasticsearchMailDestination implements MailDestination {
         createIndexIfNotExists();
 
         final IndexableMailMessage imsg = IndexableMailMessage.fromJavaMailMessage(msg, withTextContent, withHtmlContent, preferHtmlContent, withAttachments,
-                stripTagsFromTextContent, headersToFields);
+                stripTagsFromTextContent, headerSelector, attachmentFilter);
 
         if (logger.isTraceEnabled()) {
             logger.trace("Process mail " + imsg.getUid() + "/" + imsg.getPopId() + " :: " + imsg.getSubject() + "/" + imsg.getSentDate());
         }
 
+        storeAttachments(imsg);
+
         client.index(createIndexRequest(imsg)).actionGet();
+        markDirty();
 
     }
 
@@ -290,22 +462,40 @@ public class ElasticsearchMailDestination implements MailDestination {
         }
 
         createIndexIfNotExists();
-        
-        client.admin().indices().refresh(new RefreshRequest()).actionGet();
 
         logger.info("Will delete " + msgs.size() + " messages locally for folder " + folder.getURLName().toString());
 
-        final BoolQueryBuilder query = new BoolQueryBuilder();
+        final String folderUri = folder.getURLName().toString();
+        final List<String> ids = new ArrayList<String>(msgs.size());
 
-        if (folder instanceof POP3Folder) {
-            query.must(QueryBuilders.termsQuery("popId", msgs));
-        } else {
-            query.must(QueryBuilders.termsQuery("uid", msgs));
+        // popId for POP, uid for IMAP, see createIndexRequest()
+        for (final Object msg : msgs) {
+            ids.add(msg + "::" + folderUri);
+        }
+
+        deleteMessages(ids);
+
+    }
+
+    @Override
+    public void onMessageDeletes(final UidSet uids, final Folder folder) throws IOException, MessagingException {
+
+        if (uids.isEmpty()) {
+            return;
         }
 
-        query.must(QueryBuilders.termQuery("folderUri", folder.getURLName().toString()));
+        createIndexIfNotExists();
+
+        logger.info("Will delete " + uids.size() + " messages locally for folder " + folder.getURLName().toString());
+
+        final String folderUri = folder.getURLName().toString();
+        final List<String> ids = new ArrayList<String>(uids.size());
+
+        for (int i = 0; i < uids.size(); i++) {
+            ids.add(uids.get(i) + "::" + folderUri);
+        }
 
-        DeleteByQuery.deleteByQuery(client, index, new String[]{type}, query);
+        deleteMessages(ids);
 
     }
 
@@ -354,8 +544,31 @@ public class ElasticsearchMailDestination implements MailDestination {
         return this;
     }
 
+    /**
+     * @param sourceContentType format the documents are sent in, JSON or SMILE
+     */
+    public ElasticsearchMailDestination setSourceContentType(final XContentType sourceContentType) {
+        this.sourceContentType = sourceContentType == null ? XContentType.JSON : sourceContentType;
+        return this;
+    }
+
+    public ElasticsearchMailDestination setAttachmentFilter(final AttachmentFilter attachmentFilter) {
+        this.attachmentFilter = attachmentFilter == null ? AttachmentFilter.ACCEPT_ALL : attachmentFilter;
+        return this;
+    }
+
+    /**
+     * @param attachmentStore if not null the content of attachments is stored there once per hash instead of in every
+     *            mail document
+     */
+    public ElasticsearchMailDestination setAttachmentStore(final AttachmentStore attachmentStore) {
+        this.attachmentStore = attachmentStore;
+        return this;
+    }
+
     public MailDestination setHeadersToFields(List<String> headersToFields) {
         this.headersToFields = headersToFields;
+        this.headerSelector = new HeaderSelector(headersToFields);
         return this;
     }
 
@@ -450,7 +663,15 @@ public class ElasticsearchMailDestination implements MailDestination {
             }
          }*/
         
-                if(withAttachments) {
+                if(withAttachments && attachmentStore != null) {
+                    logger.info("Attachment content is stored in {}", attachmentStore.getIndex());
+                    mappingBuilder
+                       .startObject("attachments")
+                          .startObject("properties")
+                             .startObject("hash").field("index", "not_analyzed").field("type", "string").endObject()
+                          .endObject()
+                       .endObject();
+                } else if(withAttachments) {
                     logger.info("Configure Attachments Mapper Plugin");
                     mappingBuilder
                        .startObject("attachments")
@@ -491,16 +712,148 @@ public class ElasticsearchMailDestination implements MailDestination {
         //   logger.trace("Message: "+message.build());
         //}
         
-        final IndexRequest request = Requests.indexRequest(index).type(type).id(id).source(message.build());
+        // streamed directly into the request bytes, no intermediate String
+        final IndexRequest request = Requests.indexRequest(index).type(type).id(id).source(message.toSource(sourceContentType));
 
         return request;
 
     }
 
+    /**
+     * Hash the attachments of the message and store the content of the ones which are not yet known
+     */
+    protected void storeAttachments(final IndexableMailMessage message) throws IOException {
+
+        if (attachmentStore == null || message.getAttachments() == null) {
+            return;
+        }
+
+        for (final ESAttachment attachment : message.getAttachments()) {
+
+            // if the content could not be read the attachment is indexed inline without content
+            if (attachment.computeHash() == null) {
+                continue;
+            }
+
+            final IndexRequest request = attachmentStore.createIndexRequest(attachment, sourceContentType);
+
+            if (request != null) {
+                indexAttachment(request);
+            }
+        }
+    }
+
+    protected void indexAttachment(final IndexRequest request) throws IOException {
+        try {
+            client.index(request).actionGet();
+        } catch (final RuntimeException e) {
+            if (!(ExceptionsHelper.unwrapCause(e) instanceof DocumentAlreadyExistsException)) {
+                throw e;
+            }
+
+            logger.debug("Attachment {} was stored concurrently", request.id());
+        }
+
+        attachmentStore.onStored(request.id());
+    }
+
+    /**
+     * Remember that the index has changed, the next folder sync will refresh it
+     */
+    protected void markDirty() {
+        dirty.set(true);
+    }
+
+    /**
+     * Refresh only the own index and only if something was written since the last refresh. Concurrent callers share
+     * one refresh.
+     */
+    protected void refreshIfDirty() {
+
+        synchronized (refreshLock) {
+
+            // reset before the refresh, writes which complete meanwhile need another one
+            if (!dirty.compareAndSet(true, false)) {
+                return;
+            }
+
+            try {
+                client.admin().indices().prepareRefresh(index).get();
+            } catch (final RuntimeException e) {
+                dirty.set(true);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * The ids of the documents are known, so they are deleted with bulk requests instead of searching them
+     */
+    protected void deleteMessages(final List<String> ids) throws IOException {
+
+        long failed = 0;
+
+        for (int i = 0; i < ids.size(); i += DeleteByQuery.DEFAULT_BULK_SIZE) {
+
+            final BulkRequestBuilder bulk = client.prepareBulk();
+
+            for (final String id : ids.subList(i, Math.min(i + DeleteByQuery.DEFAULT_BULK_SIZE, ids.size()))) {
+                bulk.add(new DeleteRequest(index, type, id));
+            }
+
+            for (final BulkItemResponse item : bulk.get()) {
+                if (item.isFailed()) {
+                    failed++;
+                    logger.debug("Unable to delete {} due to {}", item.getId(), item.getFailureMessage());
+                }
+            }
+        }
+
+        markDirty();
+
+        if (failed > 0) {
+            throw new IOException("Unable to delete " + failed + " of " + ids.size() + " messages");
+        }
+    }
+
+    /**
+     * Document ids are {@code <uid or popId>::<folderUri>}
+     */
+    private static String idPrefix(final String id) {
+        final int idx = id.indexOf("::");
+        return idx < 0 ? id : id.substring(0, idx);
+    }
+
+    private static long parseUid(final String id) {
+        return Long.parseLong(idPrefix(id));
+    }
+
+    private void clearScroll(final String scrollId) {
+
+        if (scrollId == null) {
+            return;
+        }
+
+        try {
+            client.prepareClearScroll().addScrollId(scrollId).execute().actionGet();
+        } catch (final Exception e) {
+            // expires anyway
+            logger.debug("Unable to clear scroll due to {}", e.toString());
+        }
+    }
+
     protected Client getClient() {
         return client;
     }
 
+    protected String getIndex() {
+        return index;
+    }
+
+    protected String getType() {
+        return type;
+    }
+
     protected synchronized boolean isClosed() {
         return closed;
     }
@@ -0,0 +1,303 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.importer.imap.maildestination;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+
+import de.saly.elasticsearch.importer.imap.support.ByteBudget;
+import de.saly.elasticsearch.importer.imap.support.IndexableMailMessage;
+import de.saly.elasticsearch.importer.imap.support.IndexableMailMessage.ESAttachment;
+
+/**
+ * Decouples the stages of indexing a mail. The fetch stage runs on the mail source threads and reads the message from
+ * the server (IMAP loads the parts lazily while the message is walked, so this is mostly network I/O). The parse stage
+ * (stripping tags and serializing to JSON) runs on a pool sized by CPU cores and the index stage hands the documents to
+ * the bulk processor. Stages are connected by bounded queues, a full queue blocks the previous stage. The queued
+ * messages hold their loaded attachments, so the bytes of all messages in the pipeline are bounded as well.
+ */
+public class IndexingPipeline {
+
+    private final StageMetrics fetchStage = new StageMetrics("fetch");
+    private final Stage parseStage;
+    private final Stage indexStage;
+    private final ByteBudget queueBudget;
+    protected final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
+
+    /**
+     * @param queueBudget limits the bytes of the messages between entering the pipeline and being handed to the bulk
+     *            processor, may be null
+     */
+    public IndexingPipeline(final int parseThreads, final int indexThreads, final int queueSize, final ByteBudget queueBudget) {
+        super();
+        parseStage = new Stage("parse", parseThreads, queueSize);
+        indexStage = new Stage("index", indexThreads, queueSize);
+        this.queueBudget = queueBudget;
+    }
+
+    /**
+     * Record the time the calling thread needed to read the message from the server
+     */
+    public void fetched(final long startNanos) {
+        fetchStage.record(startNanos);
+    }
+
+    /**
+     * Blocks while the pipeline is full
+     *
+     * @throws RejectedExecutionException if the pipeline is closed or the calling thread is interrupted, the message is
+     *             not indexed then
+     */
+    public void submit(final IndexableMailMessage imsg, final ElasticsearchBulkMailDestination destination) {
+
+        final long bytes = estimateBytes(imsg);
+        acquire(bytes);
+
+        try {
+            parseStage.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    final IndexRequest request;
+
+                    try {
+                        request = destination.createIndexRequestForPipeline(imsg);
+                    } catch (final Exception e) {
+                        release(bytes);
+                        logger.error("Unable to serialize message {} in {} due to {}", e, imsg.getUid(), imsg.getFolderUri(), e.toString());
+                        return;
+                    }
+
+                    try {
+                        indexStage.execute(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                try {
+                                    destination.addToBulk(request);
+                                } catch (final Exception e) {
+                                    logger.error("Unable to index message {} in {} due to {}", e, imsg.getUid(), imsg.getFolderUri(),
+                                            e.toString());
+                                } finally {
+                                    // from now on the bytes are accounted by the bulk processor
+                                    release(bytes);
+                                }
+                            }
+                        });
+                    } catch (final RejectedExecutionException e) {
+                        release(bytes);
+                        logger.error("Unable to index message {} in {} due to {}", imsg.getUid(), imsg.getFolderUri(), e.toString());
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            release(bytes);
+            throw e;
+        }
+    }
+
+    private void acquire(final long bytes) {
+
+        if (queueBudget == null) {
+            return;
+        }
+
+        try {
+            queueBudget.acquire(bytes);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for pipeline capacity", e);
+        }
+    }
+
+    private void release(final long bytes) {
+        if (queueBudget != null) {
+            queueBudget.release(bytes);
+        }
+    }
+
+    /**
+     * @return the heap a message holds until it is serialized, mainly its content and loaded attachments
+     */
+    private static long estimateBytes(final IndexableMailMessage imsg) {
+
+        long bytes = 0;
+
+        if (imsg.getTextContent() != null) {
+            bytes += imsg.getTextContent().length() * 2L;
+        }
+
+        if (imsg.getHtmlContent() != null) {
+            bytes += imsg.getHtmlContent().length() * 2L;
+        }
+
+        if (imsg.getAttachments() != null) {
+            for (final ESAttachment attachment : imsg.getAttachments()) {
+                if (attachment.getContent() != null) {
+                    bytes += attachment.getContent().length;
+                }
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Process everything which is queued and stop all stages
+     */
+    public void close() {
+
+        parseStage.close();
+        indexStage.close();
+
+        logger.info("Pipeline closed, {}", this);
+    }
+
+    @Override
+    public String toString() {
+        return "IndexingPipeline [" + fetchStage + ", " + parseStage + ", " + indexStage + (queueBudget == null ? "" : ", " + queueBudget)
+                + "]";
+    }
+
+    private static class StageMetrics {
+
+        protected final String name;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        StageMetrics(final String name) {
+            this.name = name;
+        }
+
+        void record(final long startNanos) {
+            final long took = System.nanoTime() - startNanos;
+            count.incrementAndGet();
+            totalNanos.addAndGet(took);
+
+            long max;
+            while ((max = maxNanos.get()) < took && !maxNanos.compareAndSet(max, took)) {
+                // retry
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + " [" + fields() + "]";
+        }
+
+        protected String fields() {
+            final long c = count.get();
+            return "count=" + c + ", avgLatencyMs=" + (c == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / c)) + ", maxLatencyMs="
+                    + TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+        }
+    }
+
+    private class Stage extends StageMetrics {
+
+        private final ThreadPoolExecutor executor;
+
+        Stage(final String name, final int threads, final int queueSize) {
+            super(name);
+
+            final AtomicInteger threadNumber = new AtomicInteger();
+
+            executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                    queueSize < 1 ? 1 : queueSize), new ThreadFactory() {
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "imap-pipeline-" + name + "-" + threadNumber.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, new RejectedExecutionHandler() {
+
+                @Override
+                public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("Stage " + name + " is closed");
+                    }
+
+                    // queue is full, block the previous stage
+                    try {
+                        executor.getQueue().put(r);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for stage " + name, e);
+                    }
+                }
+            });
+        }
+
+        void execute(final Runnable task) {
+
+            final long start = System.nanoTime();
+
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        record(start);
+                    }
+                }
+            });
+        }
+
+        void close() {
+
+            executor.shutdown();
+
+            try {
+                if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    logger.warn("Stage {} not terminated in time, {} tasks left", name, executor.getQueue().size());
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        protected String fields() {
+            return super.fields() + ", queued=" + executor.getQueue().size();
+        }
+    }
+}
@@ -26,14 +26,25 @@
 package de.saly.elasticsearch.importer.imap.maildestination;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
 
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.Store;
+
+import de.saly.elasticsearch.importer.imap.support.UidSet;
 
 public interface MailDestination {
 
+    /**
+     * Called before the locally stored messages of a folder are read, so that everything which was written before is
+     * visible for the reads of this folder sync
+     */
+    public void beginFolderSync(Folder folder) throws IOException, MessagingException;
+
     public abstract void clearDataForFolder(Folder folder) throws IOException, MessagingException;
 
     public abstract void close();
@@ -41,14 +52,32 @@ public interface MailDestination {
     @SuppressWarnings("rawtypes")
     public abstract Set getCurrentlyStoredMessageUids(Folder folder) throws IOException, MessagingException;
 
+    /**
+     * Like {@link #getCurrentlyStoredMessageUids(Folder)} but for IMAP folders only, without boxing every uid
+     */
+    public UidSet getCurrentlyStoredMessageUidSet(Folder folder) throws IOException, MessagingException;
+
     public int getFlaghashcode(String id) throws IOException, MessagingException;
 
-    public abstract Set<String> getFolderNames() throws IOException, MessagingException;
+    /**
+     * Batched variant of {@link #getFlaghashcode(String)} for IMAP folders
+     * 
+     * @param uids the uids to look up or null to get the flaghashcodes of all locally stored messages of the folder
+     * @return flaghashcode for each uid which is stored locally
+     */
+    public Map<Long, Integer> getFlaghashcodes(Folder folder, Collection<Long> uids) throws IOException, MessagingException;
+
+    /**
+     * @return the full names of all folders of the given store (mailbox) which have locally stored messages
+     */
+    public abstract Set<String> getFolderNames(Store store) throws IOException, MessagingException;
 
     public abstract void onMessage(Message msg) throws IOException, MessagingException;
 
     @SuppressWarnings("rawtypes")
     public abstract void onMessageDeletes(Set msgs, Folder folder) throws IOException, MessagingException;
 
+    public void onMessageDeletes(UidSet uids, Folder folder) throws IOException, MessagingException;
+
     public abstract ElasticsearchMailDestination startup() throws IOException;
 }
@@ -0,0 +1,283 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.importer.imap.mailsource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import javax.mail.event.MessageChangedEvent;
+import javax.mail.event.MessageChangedListener;
+import javax.mail.event.MessageCountEvent;
+import javax.mail.event.MessageCountListener;
+
+import org.elasticsearch.common.unit.TimeValue;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+
+import de.saly.elasticsearch.importer.imap.support.IMAPUtils;
+
+/**
+ * IMAP mail source which additionally keeps an IDLE connection open for each watched folder. New, expunged or changed
+ * messages in a watched folder trigger an incremental fetch of this folder immediately. Watched folders are skipped by
+ * the regular polling as long as their IDLE connection is alive. If the server does not support IDLE the watched
+ * folders are polled like all other folders.
+ */
+public class IdlePushIMAPMailSource extends ParallelPollingIMAPMailSource {
+
+    private final List<String> idleFolders;
+    private final List<IdleWatcher> watchers = new ArrayList<IdleWatcher>();
+    // only for the keepalives, a long running fetch must not delay them
+    private final ScheduledExecutorService idleEs = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "imap-idle-keepalive");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private TimeValue keepAliveInterval = TimeValue.timeValueMinutes(10);
+    private TimeValue reconnectDelay = TimeValue.timeValueSeconds(30);
+
+    public IdlePushIMAPMailSource(final Properties props, final int threadCount, final String user, final String password,
+            final List<String> idleFolders) {
+        super(props, threadCount, user, password);
+        this.idleFolders = idleFolders;
+    }
+
+    public IdlePushIMAPMailSource setKeepAliveInterval(final TimeValue keepAliveInterval) {
+        this.keepAliveInterval = keepAliveInterval;
+        return this;
+    }
+
+    public IdlePushIMAPMailSource setReconnectDelay(final TimeValue reconnectDelay) {
+        this.reconnectDelay = reconnectDelay;
+        return this;
+    }
+
+    public synchronized void startIdle() {
+
+        if (isClosed() || !watchers.isEmpty()) {
+            return;
+        }
+
+        for (final String folderName : idleFolders) {
+            final IdleWatcher watcher = new IdleWatcher(folderName);
+            watchers.add(watcher);
+
+            final Thread t = new Thread(watcher, "imap-idle-" + folderName);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        logger.info("Started IDLE for folders {}", idleFolders);
+    }
+
+    @Override
+    public void close() {
+
+        // marks this mail source as closed before the watchers are stopped, so they do not reconnect
+        super.close();
+
+        synchronized (this) {
+            for (final IdleWatcher watcher : watchers) {
+                watcher.stop();
+            }
+        }
+
+        idleEs.shutdownNow();
+    }
+
+    @Override
+    protected boolean isPushed(final Folder folder) {
+
+        synchronized (this) {
+            for (final IdleWatcher watcher : watchers) {
+                if (watcher.folderName.equals(folder.getFullName())) {
+                    return watcher.idling;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private class IdleWatcher implements Runnable, MessageCountListener, MessageChangedListener {
+
+        private final String folderName;
+        private final AtomicBoolean fetchPending = new AtomicBoolean();
+        private volatile boolean idling;
+        private volatile Store store;
+        private volatile IMAPFolder folder;
+
+        IdleWatcher(final String folderName) {
+            this.folderName = folderName;
+        }
+
+        @Override
+        public void messageChanged(final MessageChangedEvent e) {
+            triggerFetch();
+        }
+
+        @Override
+        public void messagesAdded(final MessageCountEvent e) {
+            triggerFetch();
+        }
+
+        @Override
+        public void messagesRemoved(final MessageCountEvent e) {
+            triggerFetch();
+        }
+
+        @Override
+        public void run() {
+
+            while (!isClosed()) {
+
+                ScheduledFuture<?> keepAlive = null;
+
+                try {
+                    store = connect();
+
+                    if (!IMAPUtils.hasCapability(store, "IDLE")) {
+                        logger.warn("Server does not support IDLE, folder {} will be polled", folderName);
+                        return;
+                    }
+
+                    folder = (IMAPFolder) store.getFolder(folderName);
+                    folder.addMessageCountListener(this);
+                    folder.addMessageChangedListener(this);
+                    folder.open(Folder.READ_ONLY);
+
+                    keepAlive = idleEs.scheduleWithFixedDelay(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            keepAlive();
+                        }
+                    }, keepAliveInterval.millis(), keepAliveInterval.millis(), TimeUnit.MILLISECONDS);
+
+                    idling = true;
+
+                    // catch up with everything which happened while we were not idling
+                    triggerFetch();
+
+                    logger.debug("Start IDLE on folder {}", folderName);
+
+                    while (!isClosed() && folder.isOpen()) {
+                        // returns if the server terminates the IDLE or the keepalive interrupts it
+                        folder.idle();
+                    }
+
+                } catch (final Exception e) {
+                    if (!isClosed()) {
+                        logger.warn("IDLE on folder {} failed, will reconnect in {} due to {}", folderName, reconnectDelay, e.toString());
+                    }
+                } finally {
+                    idling = false;
+
+                    if (keepAlive != null) {
+                        keepAlive.cancel(false);
+                    }
+
+                    IMAPUtils.close(folder);
+                    IMAPUtils.close(store);
+                }
+
+                if (!isClosed()) {
+                    try {
+                        Thread.sleep(reconnectDelay.millis());
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        void stop() {
+            IMAPUtils.close(folder);
+            IMAPUtils.close(store);
+        }
+
+        private void keepAlive() {
+            try {
+                // terminates the running IDLE, the watcher will reissue it
+                folder.doCommand(new IMAPFolder.ProtocolCommand() {
+
+                    @Override
+                    public Object doCommand(final IMAPProtocol p) throws ProtocolException {
+                        p.noop();
+                        return null;
+                    }
+                });
+            } catch (final Exception e) {
+                logger.debug("Keepalive for folder {} failed due to {}", folderName, e.toString());
+            }
+        }
+
+        private void triggerFetch() {
+
+            // coalesce notifications, one pending fetch per folder is enough
+            if (isClosed() || !fetchPending.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                // pushed fetches run on the (shared) workers of this mailbox like the polling, they are serialized by
+                // the fetch lock
+                getExecutorService().execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        fetchPending.set(false);
+
+                        try {
+                            fetchFolder(folderName);
+                        } catch (final Exception e) {
+                            logger.error("Unable to fetch pushed folder {} due to {}", e, folderName, e.toString());
+                        }
+                    }
+                });
+            } catch (final Exception e) {
+                fetchPending.set(false);
+                logger.debug("Unable to schedule fetch for folder {} due to {}", folderName, e.toString());
+            }
+        }
+    }
+}
@@ -26,12 +26,14 @@
 package de.saly.elasticsearch.importer.imap.mailsource;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Pattern;
 
 import javax.mail.MessagingException;
 
 import de.saly.elasticsearch.importer.imap.maildestination.MailDestination;
 import de.saly.elasticsearch.importer.imap.state.StateManager;
+import de.saly.elasticsearch.importer.imap.support.StorePool;
 
 public interface MailSource {
 
@@ -49,5 +51,12 @@ public interface MailSource {
 
     public void setStateManager(StateManager stateManager);
 
+    public void setStorePool(StorePool storePool);
+
+    /**
+     * Executor for the parallel work of this mail source, if not set the mail source creates its own thread pool
+     */
+    public void setExecutorService(ExecutorService es);
+
     public void setDeleteExpungedMessages(boolean deleteExpungedMessages);
 }
@@ -28,14 +28,19 @@ package de.saly.elasticsearch.importer.imap.mailsource;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
 import javax.mail.Folder;
@@ -44,21 +49,37 @@ import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.Store;
 import javax.mail.UIDFolder;
+import javax.mail.event.MailEvent;
 import javax.mail.internet.MimeMessage;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.MessageVanishedEvent;
+import com.sun.mail.imap.ResyncData;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.Status;
 
 import de.saly.elasticsearch.importer.imap.maildestination.MailDestination;
 import de.saly.elasticsearch.importer.imap.state.State;
 import de.saly.elasticsearch.importer.imap.state.StateManager;
+import de.saly.elasticsearch.importer.imap.support.FlagHashCache;
 import de.saly.elasticsearch.importer.imap.support.IMAPUtils;
+import de.saly.elasticsearch.importer.imap.support.StorePool;
+import de.saly.elasticsearch.importer.imap.support.StorePool.PooledStore;
+import de.saly.elasticsearch.importer.imap.support.UidChunkQueue;
+import de.saly.elasticsearch.importer.imap.support.UidChunkQueue.UidChunk;
+import de.saly.elasticsearch.importer.imap.support.UidSet;
 
 public class ParallelPollingIMAPMailSource implements MailSource {
 
-    private final ExecutorService es;
+    private ExecutorService es;
+    private volatile boolean closed;
     private MailDestination mailDestination;
     private final String password;
     private final Properties props;
@@ -66,24 +87,41 @@ public class ParallelPollingIMAPMailSource implements MailSource {
     private final int threadCount;
     private final String user;
     private boolean withFlagSync = true;
+    private boolean withCondstore = true;
     private boolean deleteExpungedMessages = true;
+    private int uidChunkSize = 100;
+    private int maxParallelFolders = 1;
+    private int checkpointMessages = 10000;
+    private TimeValue checkpointInterval = TimeValue.timeValueMinutes(1);
+    private final ReentrantLock fetchLock = new ReentrantLock();
+    // folder url -> flaghashcodes of the locally stored messages
+    private final Map<String, FlagHashCache> flagHashCaches = new ConcurrentHashMap<String, FlagHashCache>();
+    private StorePool storePool;
     protected final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
     public ParallelPollingIMAPMailSource(final Properties props, final int threadCount, final String user, final String password) {
         super();
         this.props = props;
         this.threadCount = threadCount < 1 ? 1 : threadCount;
-        this.es = Executors.newFixedThreadPool(threadCount);
-
         this.user = user;
         this.password = password;
     }
 
     @Override
     public void close() {
-        if (es != null) {
+
+        closed = true;
+
+        synchronized (this) {
 
             logger.info("Initiate shutdown");
-            es.shutdown();
+
+            if (es != null) {
+                es.shutdown();
+            }
+
+            if (storePool != null) {
+                storePool.close();
+            }
             /*try {
                 if (es.awaitTermination(2, TimeUnit.SECONDS)) {
                     logger.info("Shutdown completed gracefully");
@@ -132,6 +170,24 @@ public class ParallelPollingIMAPMailSource implements MailSource {
         return threadCount;
     }
 
+    /**
+     * @return the injected (shared) executor or a private pool with threadCount threads if none was injected
+     */
+    public synchronized ExecutorService getExecutorService() {
+        if (es == null) {
+            es = Executors.newFixedThreadPool(threadCount);
+        }
+        return es;
+    }
+
+    public synchronized StorePool getStorePool() {
+        if (storePool == null) {
+            // one connection for each folder synced in parallel and one for each thread
+            storePool = new StorePool(props, user, password).maxSize(threadCount + maxParallelFolders);
+        }
+        return storePool;
+    }
+
     @Override
     public void setMailDestination(final MailDestination mailDestination) {
         this.mailDestination = mailDestination;
@@ -143,135 +199,227 @@ public class ParallelPollingIMAPMailSource implements MailSource {
         this.stateManager = stateManager;
     }
 
+    @Override
+    public synchronized void setExecutorService(final ExecutorService es) {
+        this.es = es;
+    }
+
+    @Override
+    public synchronized void setStorePool(final StorePool storePool) {
+        this.storePool = storePool;
+    }
+
     public ParallelPollingIMAPMailSource setWithFlagSync(final boolean withFlagSync) {
         this.withFlagSync = withFlagSync;
         return this;
     }
+
+    public ParallelPollingIMAPMailSource setWithCondstore(final boolean withCondstore) {
+        this.withCondstore = withCondstore;
+        return this;
+    }
     
+    public ParallelPollingIMAPMailSource setUidChunkSize(final int uidChunkSize) {
+        this.uidChunkSize = uidChunkSize < 1 ? 1 : uidChunkSize;
+        return this;
+    }
+
+    public ParallelPollingIMAPMailSource setMaxParallelFolders(final int maxParallelFolders) {
+        this.maxParallelFolders = maxParallelFolders < 1 ? 1 : maxParallelFolders;
+        return this;
+    }
+
+    /**
+     * @param checkpointMessages persist the progress of a sync after this many messages, 0 to disable
+     */
+    public ParallelPollingIMAPMailSource setCheckpointMessages(final int checkpointMessages) {
+        this.checkpointMessages = checkpointMessages;
+        return this;
+    }
+
+    /**
+     * @param checkpointInterval persist the progress of a sync after this time, 0 to disable
+     */
+    public ParallelPollingIMAPMailSource setCheckpointInterval(final TimeValue checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+        return this;
+    }
+
     public void setDeleteExpungedMessages(final boolean deleteExpungedMessages) {
         this.deleteExpungedMessages = deleteExpungedMessages;
     }
 
-    private ProcessResult process(final int messageCount, final int start, final String folderName) {
+    private ProcessResult process(final long[] uids, final Folder folder, final State riverState, final long uidValidity) {
 
         final long startTime = System.currentTimeMillis();
 
-        //final int netCount = messageCount - (start == 1 ? 0 : start);
-        final int netCount = messageCount - (start == 1 ? 0 : start) + 1; //fixed #15
-
-        logger.debug("netCount: {}", netCount);
+        logger.debug("netCount: {}", uids.length);
 
-        if (netCount == 0) {
-            return new ProcessResult(0, 0, 0);
+        if (uids.length == 0) {
+            return new ProcessResult(0, 0, 0, true);
         }
-        final int block = netCount / threadCount;
 
-        final List<Future<ProcessResult>> fl = new ArrayList<Future<ProcessResult>>();
+        final String folderName = folder.getFullName();
+        final UidChunkQueue queue = new UidChunkQueue(uids, uidChunkSize);
 
-        logger.debug(netCount + "/" + threadCount + "=" + block);
+        final Checkpoint checkpoint = new Checkpoint(queue, riverState, uidValidity);
 
-        int lastStart = 0;
+        logger.debug("{} uids in {} chunks of max. {}", uids.length, queue.size(), uidChunkSize);
 
-        for (int i = 1; i <= threadCount; i++) {
+        // the calling thread works on its already opened folder, so we need at most threadCount-1 additional workers
+        final int workers = Math.min(threadCount - 1, queue.size() - 1);
 
-            final int _start = i == 1 ? start : lastStart + block + 1;
-            lastStart = _start;
+        for (int i = 0; i < workers; i++) {
+            try {
+                getExecutorService().execute(new Runnable() {
 
-            final int _end = Math.min(_start + block, messageCount);
-            if (_end < _start) {
-                continue;
+                    @Override
+                    public void run() {
+                        processChunks(queue, checkpoint, folderName);
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                logger.debug("Unable to schedule worker due to {}", e.toString());
+                break;
             }
+        }
 
-            logger.debug("Schedule: " + _start + " - " + _end);
+        processChunks(queue, checkpoint, folder);
 
-            final Future<ProcessResult> f = es.submit(new Callable<ProcessResult>() {
+        try {
+            // wait for chunks still processed by other workers
+            queue.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while waiting for {} chunks in folder {}", queue.size(), folderName);
+        }
 
-                @Override
-                public ProcessResult call() throws Exception {
-                    return processMessageSlice(_start, _end, folderName);
-                }
-            });
+        // from now on the caller owns the river state again
+        checkpoint.finish();
 
-            fl.add(f);
+        if (queue.getFailedCount() > 0) {
+            logger.error("Unable to process {} of {} chunks in folder {}", queue.getFailedCount(), queue.size(), folderName);
         }
 
-        long highestUid = 0;
-        int processedCount = 0;
+        if (!queue.isComplete()) {
+            logger.warn("Sync of folder {} incomplete, only uids up to {} are marked as processed", folderName,
+                    queue.getPersistableUid());
+        }
 
-        for (final Future<ProcessResult> fu : fl) {
-            try {
-                highestUid = Math.max(highestUid, fu.get().highestUid);
-                processedCount += fu.get().processedCount;
-                logger.debug("Finished with " + fu.get());
-            } catch (final Exception e) {
-                logger.error("Unable to process some mails due to {}", e, e.toString());
+        final long endTime = System.currentTimeMillis() + 1;
+
+        // never report a uid above a failed or unprocessed chunk, otherwise its messages would be skipped forever
+        return new ProcessResult(queue.getPersistableUid(), queue.getProcessedCount(), endTime - startTime, queue.isComplete());
+
+    }
+
+    private void processChunks(final UidChunkQueue queue, final Checkpoint checkpoint, final String folderName) {
+
+        if (queue.isEmpty()) {
+            return;
+        }
+
+        PooledStore pooledStore = null;
+
+        try {
+            // never block here, if no connection is free the other workers will do the job
+            pooledStore = getStorePool().tryBorrow();
+
+            if (pooledStore == null) {
+                logger.debug("No free connection for additional worker on {}", folderName);
+                return;
             }
+
+            processChunks(queue, checkpoint, pooledStore.openFolder(folderName));
+
+        } catch (final Exception e) {
+            logger.error("Unable to start worker for folder {} due to {}", e, folderName, e.toString());
+        } finally {
+            getStorePool().release(pooledStore);
         }
+    }
 
-        final long endTime = System.currentTimeMillis() + 1;
+    private void processChunks(final UidChunkQueue queue, final Checkpoint checkpoint, final Folder folder) {
 
-        return new ProcessResult(highestUid, processedCount, endTime - startTime);
+        UidChunk chunk;
 
+        while (!Thread.currentThread().isInterrupted() && (chunk = queue.poll()) != null) {
+
+            try {
+                processChunk(chunk, queue, folder);
+                checkpoint.onChunkCompleted();
+            } catch (final Exception e) {
+                queue.fail(chunk);
+                logger.error("Unable to process chunk {} due to {}", e, chunk, e.toString());
+            }
+        }
     }
 
-    private ProcessResult processMessageSlice(final int start, final int end, final String folderName) throws Exception {
+    private void processChunk(final UidChunk chunk, final UidChunkQueue queue, final Folder folder) throws MessagingException {
 
-        logger.debug("processMessageSlice() started with " + start + "/" + end + "/" + folderName);
+        logger.debug("processChunk() started with {}", chunk);
         final long startTime = System.currentTimeMillis();
-        final Store store = Session.getInstance(props).getStore();
-        store.connect(user, password);
-        final Folder folder = store.getFolder(folderName);
+
         final UIDFolder uidfolder = (UIDFolder) folder;
 
         IMAPUtils.open(folder);
+        final Message[] msgs = uidfolder.getMessagesByUID(chunk.getStartUid(), chunk.getEndUid());
+        folder.fetch(msgs, IMAPUtils.FETCH_PROFILE_HEAD);
 
-        try {
-
-            final Message[] msgs = folder.getMessages(start, end);
-            folder.fetch(msgs, IMAPUtils.FETCH_PROFILE_HEAD);
+        long highestUid = 0;
+        int processedCount = 0;
 
-            logger.debug("folder fetch done");
+        for (final Message m : msgs) {
 
-            long highestUid = 0;
-            int processedCount = 0;
+            if (Thread.currentThread().isInterrupted()) {
+                // an incomplete chunk must not be completed, it is failed and retried on the next run
+                throw new MessagingException("Interrupted while processing " + chunk);
+            }
 
-            for (final Message m : msgs) {
-                try {
+            try {
 
-                    IMAPUtils.open(folder);
-                    final long uid = uidfolder.getUID(m);
+                // null if expunged meanwhile
+                if (m == null) {
+                    continue;
+                }
 
-                    mailDestination.onMessage(m);
+                IMAPUtils.open(folder);
+                final long uid = uidfolder.getUID(m);
 
-                    highestUid = Math.max(highestUid, uid);
-                    processedCount++;
+                mailDestination.onMessage(m);
 
-                    if (Thread.currentThread().isInterrupted()) {
-                        break;
-                    }
+                highestUid = Math.max(highestUid, uid);
+                processedCount++;
 
-                } catch (final Exception e) {
-                    stateManager.onError("Unable to make indexable message", m, e);
-                    logger.error("Unable to make indexable message due to {}", e, e.toString());
+            } catch (final RejectedExecutionException e) {
+                // the destination does not take messages anymore, fail the chunk so that it is fetched again
+                throw new MessagingException("Message rejected while processing " + chunk, e);
+            } catch (final Exception e) {
+                stateManager.onError("Unable to make indexable message", m, e);
+                logger.error("Unable to make indexable message due to {}", e, e.toString());
 
-                    IMAPUtils.open(folder);
-                }
+                IMAPUtils.open(folder);
             }
+        }
 
-            final long endTime = System.currentTimeMillis() + 1;
-            final ProcessResult pr = new ProcessResult(highestUid, processedCount, endTime - startTime);
-            logger.debug("processMessageSlice() ended with " + pr);
-            return pr;
+        queue.complete(chunk, highestUid, processedCount);
 
-        } finally {
+        if (logger.isDebugEnabled()) {
+            logger.debug("processChunk() ended with {} processed in {} ms", processedCount, System.currentTimeMillis() - startTime);
+        }
+    }
 
-            IMAPUtils.close(folder);
-            IMAPUtils.close(store);
+    private static long[] getUids(final Message[] msgs, final UIDFolder uidfolder) throws MessagingException {
+
+        final long[] uids = new long[msgs.length];
+
+        for (int i = 0; i < msgs.length; i++) {
+            uids[i] = uidfolder.getUID(msgs[i]);
         }
 
+        return uids;
     }
 
-    @SuppressWarnings({ "rawtypes", "unchecked" })
     protected void fetch(final Folder folder) throws MessagingException, IOException {
 
         if ((folder.getType() & Folder.HOLDS_MESSAGES) == 0) {
@@ -280,25 +428,56 @@ public class ParallelPollingIMAPMailSource implements MailSource {
 
         }
 
+        final State riverState = stateManager.getRiverState(folder);
+
+        // null if STATUS is not available
+        final Status status = getStatus(folder);
+
+        // false if any chunk of new messages failed, then the next run must not skip this folder
+        boolean complete = true;
+
+        if (status != null && isUnchanged(status, riverState)) {
+            logger.debug("Folder {} is unchanged since the last run, skip it", folder.getFullName());
+            return;
+        }
+
+        mailDestination.beginFolderSync(folder);
+
+        // null if the folder was not opened with QRESYNC
+        final long[] vanishedUids = open(folder, riverState);
+
         final int messageCount = folder.getMessageCount();
 
         final UIDFolder uidfolder = (UIDFolder) folder;
         final long servervalidity = uidfolder.getUIDValidity();
-        final State riverState = stateManager.getRiverState(folder);
         final Long localvalidity = riverState.getUidValidity();
 
+        // -1 if the server does not support CONDSTORE
+        final long serverModSeq = getHighestModSeq(folder);
+        final Long localModSeq = riverState.getHighestModSeq();
+
         logger.info("Fetch mails from folder {} ({})", folder.getURLName().toString(), messageCount);
 
         logger.debug("Server uid validity: {}, Local uid validity: {}", servervalidity, localvalidity);
+        logger.debug("Server highest modseq: {}, Local highest modseq: {}", serverModSeq, localModSeq);
 
         if (localvalidity == null || localvalidity.longValue() != servervalidity) {
             logger.debug("UIDValidity fail, full resync " + localvalidity + "!=" + servervalidity);
 
             if (localvalidity != null) {
                 mailDestination.clearDataForFolder(folder);
+                flagHashCaches.remove(folder.getURLName().toString());
             }
 
-            final ProcessResult result = process(messageCount, 1, folder.getFullName());
+            // values of the old uid validity must not be persisted together with the new one by a checkpoint
+            riverState.setLastUid(-1);
+            riverState.setHighestModSeq(null);
+            riverState.setMessageCount(null);
+            riverState.setUidNext(null);
+
+            final Message[] msgs = uidfolder.getMessagesByUID(1, UIDFolder.LASTUID);
+            final ProcessResult result = process(getUids(msgs, uidfolder), folder, riverState, servervalidity);
+            complete = result.isComplete();
 
             riverState.setLastCount(result.getProcessedCount());
 
@@ -312,11 +491,13 @@ public class ParallelPollingIMAPMailSource implements MailSource {
 
             riverState.setLastSchedule(new Date());
 
-            if (result.getProcessedCount() > 0 && result.getHighestUid() > 0) {
+            // never below a checkpoint already persisted during the run
+            if (result.getHighestUid() > riverState.getLastUid()) {
                 riverState.setLastUid(result.getHighestUid());
             }
 
             riverState.setUidValidity(servervalidity);
+            riverState.setHighestModSeq(serverModSeq > 0 ? serverModSeq : null);
             stateManager.setRiverState(riverState);
 
             logger.info("Initiailly processed {} mails for folder {}", result.getProcessedCount(), folder.getFullName());
@@ -329,38 +510,25 @@ public class ParallelPollingIMAPMailSource implements MailSource {
             } else {
 
                 if (withFlagSync) {
-                    // detect flag change
-                    final Message[] flagMessages = folder.getMessages();
-                    folder.fetch(flagMessages, IMAPUtils.FETCH_PROFILE_FLAGS_UID);
-
-                    for (final Message message : flagMessages) {
-                        try {
-
-                            final long uid = ((UIDFolder) message.getFolder()).getUID(message);
-
-                            final String id = uid + "::" + message.getFolder().getURLName();
-
-                            final int storedHashcode = mailDestination.getFlaghashcode(id);
-
-                            if (storedHashcode == -1) {
-                                // New mail which is not indexed yet
-                                continue;
-                            }
-
-                            final int flagHashcode = message.getFlags().hashCode();
-
-                            if (flagHashcode != storedHashcode) {
-                                // flags change for this message, must update
-                                mailDestination.onMessage(message);
 
-                                if (logger.isDebugEnabled()) {
-                                    logger.debug("Update " + id + " because of flag change");
-                                }
-                            }
-                        } catch (final Exception e) {
-                            logger.error("Error detecting flagchanges for message " + ((MimeMessage) message).getMessageID(), e);
-                            stateManager.onError("Error detecting flagchanges", message, e);
+                    if (serverModSeq > 0 && localModSeq != null) {
+
+                        if (serverModSeq != localModSeq.longValue() && riverState.getLastUid() > 0) {
+                            // detect flag change only for messages which changed since the last run
+                            final Message[] flagMessages = ((IMAPFolder) folder).getMessagesByUIDChangedSince(1, riverState.getLastUid(),
+                                    localModSeq.longValue());
+                            folder.fetch(flagMessages, IMAPUtils.FETCH_PROFILE_FLAGS_UID);
+                            logger.debug("{} messages changed since modseq {}", flagMessages.length, localModSeq);
+                            syncFlags(folder, flagMessages, false, servervalidity);
+                        } else {
+                            logger.debug("No flag changes since modseq {}", localModSeq);
                         }
+
+                    } else {
+                        // detect flag change
+                        final Message[] flagMessages = folder.getMessages();
+                        folder.fetch(flagMessages, IMAPUtils.FETCH_PROFILE_FLAGS_UID);
+                        syncFlags(folder, flagMessages, true, servervalidity);
                     }
                 }
 
@@ -378,9 +546,9 @@ public class ParallelPollingIMAPMailSource implements MailSource {
                 Message[] msgsnew = uidfolder.getMessagesByUID(highestUID, UIDFolder.LASTUID);
 
                 if (msgsnew.length > 0) {
-                    
-                    System.out.println("lastuid: "+uidfolder.getUID(msgsnew[msgsnew.length-1]));
-                    
+
+                    logger.debug("lastuid: {}", uidfolder.getUID(msgsnew[msgsnew.length-1]));
+
                     // msgnew.size is always >= 1
                     if (highestUID > 1 && uidfolder.getUID(msgsnew[msgsnew.length-1]) <= highestUID) {
                          msgsnew = (Message[]) ArrayUtils.remove(msgsnew, msgsnew.length-1);
@@ -390,9 +558,8 @@ public class ParallelPollingIMAPMailSource implements MailSource {
                     
                         logger.info("{} new messages in folder {}", msgsnew.length, folder.getFullName());
     
-                        final int start = msgsnew[0].getMessageNumber();
-    
-                        final ProcessResult result = process(messageCount, start, folder.getFullName());
+                        final ProcessResult result = process(getUids(msgsnew, uidfolder), folder, riverState, servervalidity);
+                        complete = result.isComplete();
     
                         riverState.setLastCount(result.getProcessedCount());
     
@@ -406,10 +573,12 @@ public class ParallelPollingIMAPMailSource implements MailSource {
     
                         riverState.setLastSchedule(new Date());
     
-                        if (result.getProcessedCount() > 0 && result.getHighestUid() > 0) {
+                        // never below a checkpoint already persisted during the run
+                        if (result.getHighestUid() > riverState.getLastUid()) {
                             riverState.setLastUid(result.getHighestUid());
                         }
     
+                        // the modseq is saved after the deletes below, vanished uids are reported only once
                         riverState.setUidValidity(servervalidity);
                         stateManager.setRiverState(riverState);
     
@@ -423,58 +592,413 @@ public class ParallelPollingIMAPMailSource implements MailSource {
                 }
 
             }
-            // check for expunged/deleted messages
-            final Set<Long> serverMailSet = new HashSet<Long>();
+            if (vanishedUids != null) {
 
-            final long oldmailUid = riverState.getLastUid();
-            logger.debug("oldmailuid {}", oldmailUid);
+                if(deleteExpungedMessages) {
+                    // QRESYNC already told us which messages are gone since the last run
+                    final UidSet vanishedSet = UidSet.of(vanishedUids);
+
+                    logger.info(vanishedSet.size() + " messages were locally deleted, because they are vanished on server.");
+
+                    mailDestination.onMessageDeletes(vanishedSet, folder);
+                }
 
-            final Message[] msgsold = uidfolder.getMessagesByUID(1, oldmailUid);
+            } else if (deleteExpungedMessages) {
 
-            folder.fetch(msgsold, IMAPUtils.FETCH_PROFILE_UID);
+                // check for expunged/deleted messages
+                final long oldmailUid = riverState.getLastUid();
+                logger.debug("oldmailuid {}", oldmailUid);
 
-            for (final Message m : msgsold) {
-                try {
-                    final long uid = uidfolder.getUID(m);
-                    serverMailSet.add(uid);
+                final Message[] msgsold = uidfolder.getMessagesByUID(1, oldmailUid);
 
-                } catch (final Exception e) {
-                    stateManager.onError("Unable to handle old message ", m, e);
-                    logger.error("Unable to handle old message due to {}", e, e.toString());
+                folder.fetch(msgsold, IMAPUtils.FETCH_PROFILE_UID);
 
-                    IMAPUtils.open(folder);
+                final UidSet serverMailSet = new UidSet(msgsold.length);
+
+                for (final Message m : msgsold) {
+                    try {
+                        serverMailSet.add(uidfolder.getUID(m));
+
+                    } catch (final Exception e) {
+                        stateManager.onError("Unable to handle old message ", m, e);
+                        logger.error("Unable to handle old message due to {}", e, e.toString());
+
+                        IMAPUtils.open(folder);
+                    }
                 }
-            }
-            
-            if(deleteExpungedMessages) {
-            
-                final Set localMailSet = new HashSet(mailDestination.getCurrentlyStoredMessageUids(folder));
-    
+
+                final UidSet localMailSet = mailDestination.getCurrentlyStoredMessageUidSet(folder);
+
                 logger.debug("Check now " + localMailSet.size() + " server mails for expunge");
-    
-                localMailSet.removeAll(serverMailSet);
-                // localMailSet has now the ones that are not on server             
-    
-                logger.info(localMailSet.size() + " messages were locally deleted, because they are expunged on server.");
-    
-                mailDestination.onMessageDeletes(localMailSet, folder);
-            
+
+                // the ones that are not on server
+                final UidSet expungedMailSet = localMailSet.minus(serverMailSet);
+
+                logger.info(expungedMailSet.size() + " messages were locally deleted, because they are expunged on server.");
+
+                mailDestination.onMessageDeletes(expungedMailSet, folder);
             }
 
+            if (serverModSeq > 0 && (riverState.getHighestModSeq() == null || serverModSeq != riverState.getHighestModSeq().longValue())) {
+                // only reached if the deletes succeeded, otherwise the old modseq reports the vanished uids again
+                riverState.setHighestModSeq(serverModSeq);
+                stateManager.setRiverState(riverState);
+            }
+
+        }
+
+        if (!complete) {
+            // failed chunks must be retried, so the next run must not consider the folder unchanged
+            riverState.setMessageCount(null);
+            riverState.setUidNext(null);
+            stateManager.setRiverState(riverState);
+        } else if (status != null) {
+            // values from before this run, so anything which changed meanwhile is picked up next time
+            riverState.setMessageCount((long) status.total);
+            riverState.setUidNext(status.uidnext);
+            stateManager.setRiverState(riverState);
         }
 
     }
 
-    protected void fetch(final Pattern pattern, final String folderName) throws MessagingException, IOException {
-        logger.debug("fetch() - pattern: {}, folderName: {}, user: {}", pattern, folderName, user);
+    /**
+     * Persists the progress of a long running sync, so that a restart continues after the last checkpoint instead of
+     * starting over. A checkpoint is the highest uid below which all chunks are done. The uid persisted is the one seen
+     * at the previous checkpoint, so the bulk processor had a whole interval to flush the messages below it.
+     */
+    private class Checkpoint {
+
+        private final UidChunkQueue queue;
+        private final State riverState;
+        private final long uidValidity;
+        private long lastTime = System.currentTimeMillis();
+        private int lastCount;
+        private long pendingUid;
+        private boolean finished;
+
+        Checkpoint(final UidChunkQueue queue, final State riverState, final long uidValidity) {
+            this.queue = queue;
+            this.riverState = riverState;
+            this.uidValidity = uidValidity;
+        }
+
+        synchronized void onChunkCompleted() {
+
+            if (finished) {
+                return;
+            }
+
+            final int count = queue.getProcessedCount();
+            final long now = System.currentTimeMillis();
+
+            final boolean due = checkpointMessages > 0 && count - lastCount >= checkpointMessages || checkpointInterval.millis() > 0
+                    && now - lastTime >= checkpointInterval.millis();
+
+            if (!due) {
+                return;
+            }
+
+            final long uid = pendingUid;
+            pendingUid = queue.getCheckpointUid();
+            lastCount = count;
+            lastTime = now;
+
+            if (uid <= riverState.getLastUid()) {
+                return;
+            }
+
+            riverState.setLastUid(uid);
+            riverState.setUidValidity(uidValidity);
+
+            try {
+                stateManager.setRiverState(riverState);
+                logger.info("Checkpoint for folder {} at uid {}, {} messages processed so far", riverState.getFolderUrl(), uid, count);
+            } catch (final MessagingException e) {
+                logger.warn("Unable to persist checkpoint for folder {} due to {}", riverState.getFolderUrl(), e.toString());
+            }
+        }
+
+        synchronized void finish() {
+            finished = true;
+        }
+    }
+
+    /**
+     * Compare the STATUS of a folder with the state of the last run. Without CONDSTORE flag changes cannot be detected
+     * this way, so the folder is only considered unchanged if flag sync is disabled.
+     */
+    private boolean isUnchanged(final Status status, final State riverState) {
+
+        if (riverState.getUidValidity() == null || riverState.getMessageCount() == null || riverState.getUidNext() == null) {
+            return false;
+        }
+
+        if (status.uidvalidity != riverState.getUidValidity().longValue() || status.total != riverState.getMessageCount().longValue()
+                || status.uidnext != riverState.getUidNext().longValue()) {
+            return false;
+        }
+
+        if (!withFlagSync) {
+            return true;
+        }
+
+        return status.highestmodseq > 0 && riverState.getHighestModSeq() != null
+                && status.highestmodseq == riverState.getHighestModSeq().longValue();
+    }
+
+    /**
+     * STATUS does not select the folder, so this is cheap even for huge folders
+     */
+    private Status getStatus(final Folder folder) {
+
+        if (!(folder instanceof IMAPFolder) || folder.isOpen()) {
+            return null;
+        }
+
+        final boolean condstore = withCondstore && IMAPUtils.hasCapability(folder.getStore(), "CONDSTORE");
+        final String[] items = condstore ? new String[] { "MESSAGES", "UIDNEXT", "UIDVALIDITY", "HIGHESTMODSEQ" } : new String[] {
+                "MESSAGES", "UIDNEXT", "UIDVALIDITY" };
 
+        try {
+            final Status status = (Status) ((IMAPFolder) folder).doCommand(new IMAPFolder.ProtocolCommand() {
+
+                @Override
+                public Object doCommand(final IMAPProtocol p) throws ProtocolException {
+                    return p.status(folder.getFullName(), items);
+                }
+            });
+
+            if (status == null || status.total < 0 || status.uidnext < 0 || status.uidvalidity < 0) {
+                return null;
+            }
+
+            logger.debug("STATUS of folder {}: messages {}, uidnext {}, uidvalidity {}, highestmodseq {}", folder.getFullName(),
+                    status.total, status.uidnext, status.uidvalidity, status.highestmodseq);
+
+            return status;
+
+        } catch (final Exception e) {
+            logger.debug("Unable to get STATUS for folder {} due to {}", folder.getFullName(), e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * @param allMessages true if flagMessages are all messages of the folder, then the stored flaghashcodes are loaded
+     *            with one scroll instead of a lookup by uid (only the first time, afterwards they are cached)
+     */
+    private void syncFlags(final Folder folder, final Message[] flagMessages, final boolean allMessages, final long uidValidity)
+            throws MessagingException, IOException {
+
+        if (flagMessages.length == 0) {
+            return;
+        }
+
+        final UIDFolder uidfolder = (UIDFolder) folder;
+        final List<Long> uids = new ArrayList<Long>(flagMessages.length);
+
+        for (final Message message : flagMessages) {
+            uids.add(uidfolder.getUID(message));
+        }
+
+        final FlagHashCache storedHashcodes = getFlagHashCache(folder, uidValidity);
+
+        if (allMessages) {
+
+            if (!storedHashcodes.isComplete()) {
+                // uid -> flaghashcode of all locally stored messages, one scroll per folder
+                storedHashcodes.putAll(mailDestination.getFlaghashcodes(folder, null));
+                storedHashcodes.setComplete(true);
+            }
+
+            storedHashcodes.retainAll(uids);
+        }
+
+        // messages which are not cached yet, mostly the ones which were indexed since the last run
+        final List<Long> missing = storedHashcodes.getMissing(uids);
+
+        if (!missing.isEmpty()) {
+            storedHashcodes.putAll(mailDestination.getFlaghashcodes(folder, missing));
+        }
+
+        logger.debug("{} flaghashcodes looked up, {} for folder {}", missing.size(), storedHashcodes, folder.getFullName());
+
+        for (final Message message : flagMessages) {
+            try {
+
+                final long uid = uidfolder.getUID(message);
+
+                final Integer storedHashcode = storedHashcodes.get(uid);
+
+                if (storedHashcode == null) {
+                    // New mail which is not indexed yet
+                    continue;
+                }
+
+                final int flagHashcode = message.getFlags().hashCode();
+
+                if (flagHashcode != storedHashcode.intValue()) {
+                    // flags change for this message, must update
+                    mailDestination.onMessage(message);
+                    storedHashcodes.put(uid, flagHashcode);
+
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Update " + uid + "::" + message.getFolder().getURLName() + " because of flag change");
+                    }
+                }
+            } catch (final Exception e) {
+                logger.error("Error detecting flagchanges for message " + ((MimeMessage) message).getMessageID(), e);
+                stateManager.onError("Error detecting flagchanges", message, e);
+            }
+        }
+    }
+
+    private FlagHashCache getFlagHashCache(final Folder folder, final long uidValidity) throws MessagingException {
+
+        final String folderUrl = folder.getURLName().toString();
+        FlagHashCache cache = flagHashCaches.get(folderUrl);
+
+        // the cached uids are meaningless if the uid validity changed
+        if (cache == null || cache.getUidValidity() != uidValidity) {
+            cache = new FlagHashCache(uidValidity);
+            flagHashCaches.put(folderUrl, cache);
+        }
+
+        return cache;
+    }
+
+    private long[] open(final Folder folder, final State riverState) throws MessagingException {
+
+        if (withCondstore && !folder.isOpen() && folder instanceof IMAPFolder) {
+
+            try {
+                if (riverState.getUidValidity() != null && riverState.getHighestModSeq() != null
+                        && IMAPUtils.hasCapability(folder.getStore(), "QRESYNC")) {
+
+                    final List<MailEvent> events = ((IMAPFolder) folder).open(Folder.READ_ONLY, new ResyncData(riverState.getUidValidity()
+                            .longValue(), riverState.getHighestModSeq().longValue()));
+
+                    long[] vanishedUids = new long[0];
+
+                    if (events != null) {
+                        for (final MailEvent event : events) {
+                            if (event instanceof MessageVanishedEvent) {
+                                vanishedUids = ArrayUtils.addAll(vanishedUids, ((MessageVanishedEvent) event).getUIDs());
+                            }
+                        }
+                    }
+
+                    logger.debug("Folder {} opened with QRESYNC, {} vanished messages", folder.getFullName(), vanishedUids.length);
+                    return vanishedUids;
+                }
+
+                if (IMAPUtils.hasCapability(folder.getStore(), "CONDSTORE")) {
+                    ((IMAPFolder) folder).open(Folder.READ_ONLY, ResyncData.CONDSTORE);
+                    logger.debug("Folder {} opened with CONDSTORE", folder.getFullName());
+                    return null;
+                }
+            } catch (final MessagingException e) {
+                logger.warn("Unable to open folder {} with CONDSTORE/QRESYNC, will fall back to plain open due to {}", folder.getFullName(),
+                        e.toString());
+            }
+        }
+
+        IMAPUtils.open(folder);
+        return null;
+    }
+
+    private long getHighestModSeq(final Folder folder) {
+
+        if (withCondstore && folder instanceof IMAPFolder && IMAPUtils.hasCapability(folder.getStore(), "CONDSTORE")) {
+            try {
+                return ((IMAPFolder) folder).getHighestModSeq();
+            } catch (final Exception e) {
+                logger.debug("Unable to get highest modseq for folder {} due to {}", folder.getFullName(), e.toString());
+            }
+        }
+
+        return -1;
+    }
+
+    protected Store connect() throws MessagingException {
         final Store store = Session.getInstance(props).getStore();
         store.connect(user, password);
+        return store;
+    }
+
+    /**
+     * Fetch only the given folder (without subfolders and without checking for stale folders)
+     */
+    protected void fetchFolder(final String folderName) throws MessagingException, IOException {
+        logger.debug("fetchFolder() - folderName: {}, user: {}", folderName, user);
+
+        fetchLock.lock();
+
+        try {
+
+            final PooledStore pooledStore = getStorePool().borrow();
+            final Folder folder = pooledStore.getStore().getFolder(folderName);
+
+            try {
+
+                if (!folder.exists()) {
+                    logger.error("Folder {} does not exist on the server", folder.getFullName());
+                    return;
+                }
+
+                fetch(folder);
+
+            } finally {
+                IMAPUtils.close(folder);
+                getStorePool().release(pooledStore);
+            }
+
+        } finally {
+            fetchLock.unlock();
+        }
+    }
+
+    protected boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return true if the folder is kept up to date by other means than polling (e.g. IMAP IDLE)
+     */
+    protected boolean isPushed(final Folder folder) {
+        return false;
+    }
+
+    protected void fetch(final Pattern pattern, final String folderName) throws MessagingException, IOException {
+
+        fetchLock.lock();
+
+        try {
+            fetchWithLock(pattern, folderName);
+        } finally {
+            fetchLock.unlock();
+        }
+    }
+
+    private void fetchWithLock(final Pattern pattern, final String folderName) throws MessagingException, IOException {
+        logger.debug("fetch() - pattern: {}, folderName: {}, user: {}", pattern, folderName, user);
+
+        final PooledStore pooledStore = getStorePool().borrow();
+        final Store store = pooledStore.getStore();
 
         if(deleteExpungedMessages) {
         
             try {
-                for (final String fol : mailDestination.getFolderNames()) {
+                Set<String> folderNames = stateManager.getFolderNames(store);
+
+                if (folderNames == null) {
+                    // no registry yet, build it once from the indexed mails
+                    folderNames = mailDestination.getFolderNames(store);
+                    stateManager.setFolderNames(store, folderNames);
+                    logger.info("Folder registry for {} created with {} folders", user, folderNames.size());
+                }
+
+                for (final String fol : folderNames) {
                     if (store.getFolder(fol).exists()) {
                         logger.debug("{} exists for {}", fol, user);
                     } else {
@@ -485,6 +1009,7 @@ public class ParallelPollingIMAPMailSource implements MailSource {
     
                         try {
                             mailDestination.clearDataForFolder(store.getFolder(fol));
+                            flagHashCaches.remove(store.getFolder(fol).getURLName().toString());
                         } catch (final Exception e) {
                             stateManager.onError("Unable to clean data for stale folder for "+user, store.getFolder(fol), e);
                         }
@@ -537,13 +1062,137 @@ public class ParallelPollingIMAPMailSource implements MailSource {
 
             IMAPUtils.open(folder);
 
-            recurseFolders(folder, pattern);
+            if (maxParallelFolders > 1) {
+                fetchParallel(folder, pattern);
+            } else {
+                recurseFolders(folder, pattern);
+            }
 
         } finally {
 
             IMAPUtils.close(folder);
-            IMAPUtils.close(store);
+            getStorePool().release(pooledStore);
+
+        }
+    }
+
+    /**
+     * List the folder tree once and fetch up to maxParallelFolders folders concurrently. Each folder is fetched by
+     * exactly one thread, so the state updates of a folder keep their order.
+     */
+    protected void fetchParallel(final Folder folder, final Pattern pattern) throws MessagingException {
+
+        final List<String> folderNames = new ArrayList<String>();
+        listFolders(folder, pattern, folderNames);
+
+        final Queue<String> queue = new ConcurrentLinkedQueue<String>(folderNames);
+        final int workers = Math.min(maxParallelFolders - 1, folderNames.size() - 1);
+
+        logger.debug("Fetch {} folders with {} additional workers", folderNames.size(), Math.max(workers, 0));
+
+        final List<Future<?>> fl = new ArrayList<Future<?>>();
+
+        for (int i = 0; i < workers; i++) {
+            try {
+                fl.add(getExecutorService().submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        PooledStore pooledStore = null;
+
+                        try {
+                            // never block here, if no connection is free the other workers will do the job
+                            pooledStore = getStorePool().tryBorrow();
+
+                            if (pooledStore == null) {
+                                logger.debug("No free connection for additional folder worker");
+                                return;
+                            }
+
+                            fetchFolders(queue, pooledStore.getStore());
+
+                        } catch (final Exception e) {
+                            logger.error("Unable to start folder worker due to {}", e, e.toString());
+                        } finally {
+                            getStorePool().release(pooledStore);
+                        }
+                    }
+                }));
+            } catch (final RejectedExecutionException e) {
+                logger.debug("Unable to schedule folder worker due to {}", e.toString());
+                break;
+            }
+        }
+
+        fetchFolders(queue, folder.getStore());
+
+        for (final Future<?> f : fl) {
+
+            // the queue is drained, workers which did not start yet are not needed anymore
+            if (f.cancel(false)) {
+                continue;
+            }
+
+            try {
+                f.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted while waiting for folder workers");
+                return;
+            } catch (final ExecutionException e) {
+                logger.error("Folder worker failed due to {}", e, e.toString());
+            }
+        }
+    }
+
+    private void fetchFolders(final Queue<String> queue, final Store store) {
+
+        String folderName;
+
+        while ((folderName = queue.poll()) != null) {
+
+            if (closed || Thread.currentThread().isInterrupted()) {
+                logger.warn("Stop processing of mails due to mail source is closed");
+                return;
+            }
+
+            Folder folder = null;
+
+            try {
+                folder = store.getFolder(folderName);
 
+                if (isPushed(folder)) {
+                    logger.debug("Folder {} is pushed, will not poll it", folderName);
+                } else {
+                    // fetch() opens the folder, with CONDSTORE/QRESYNC if supported
+                    fetch(folder);
+                }
+            } catch (final Exception e) {
+                logger.error("Unable to fetch folder {} due to {}", e, folderName, e.toString());
+            } finally {
+                IMAPUtils.close(folder);
+                logger.debug("fetch {} done", folderName);
+            }
+        }
+    }
+
+    private void listFolders(final Folder folder, final Pattern pattern, final List<String> folderNames) throws MessagingException {
+
+        if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0) {
+
+            if (pattern != null && !pattern.matcher(folder.getFullName()).matches()) {
+                logger.debug("Pattern {} does not match {}", pattern.pattern(), folder.getFullName());
+                return;
+            }
+
+            folderNames.add(folder.getFullName());
+        }
+
+        if ((folder.getType() & Folder.HOLDS_FOLDERS) != 0) {
+            for (final Folder subfolder : folder.list()) {
+                listFolders(subfolder, pattern, folderNames);
+            }
         }
     }
 
@@ -551,7 +1200,7 @@ public class ParallelPollingIMAPMailSource implements MailSource {
 
         if (folder != null) {
 
-            if (es == null || es.isShutdown() || es.isTerminated() || Thread.currentThread().isInterrupted()) {
+            if (closed || Thread.currentThread().isInterrupted()) {
 
                 logger.warn("Stop processing of mails due to mail source is closed");
                 return;
@@ -564,13 +1213,18 @@ public class ParallelPollingIMAPMailSource implements MailSource {
                     logger.debug("Pattern {} does not match {}", pattern.pattern(), folder.getFullName());
                     return;
                 }
-                IMAPUtils.open(folder);
 
-                try {
-                    fetch(folder);
-                } finally {
-                    IMAPUtils.close(folder);
-                    logger.debug("fetch {} done", folder.getFullName());
+                if (isPushed(folder)) {
+                    logger.debug("Folder {} is pushed, will not poll it", folder.getFullName());
+                } else {
+
+                    try {
+                        // fetch() opens the folder, with CONDSTORE/QRESYNC if supported
+                        fetch(folder);
+                    } finally {
+                        IMAPUtils.close(folder);
+                        logger.debug("fetch {} done", folder.getFullName());
+                    }
                 }
             }
 
@@ -587,16 +1241,26 @@ public class ParallelPollingIMAPMailSource implements MailSource {
     }
 
     private static class ProcessResult {
-        private long highestUid = 1;
+        private final long highestUid;
 
         private final int processedCount;
         private final long took;
+        private final boolean complete;
 
-        public ProcessResult(final long highestUid, final int processedCount, final long took) {
+        public ProcessResult(final long highestUid, final int processedCount, final long took, final boolean complete) {
             super();
-            this.highestUid = highestUid < 1 ? 1L : highestUid;
+            // 0 if no uid can safely be marked as processed
+            this.highestUid = highestUid < 0 ? 0L : highestUid;
             this.processedCount = processedCount;
             this.took = took;
+            this.complete = complete;
+        }
+
+        /**
+         * @return false if some uids could not be processed, these are above {@link #getHighestUid()}
+         */
+        public boolean isComplete() {
+            return complete;
         }
 
         public long getHighestUid() {
@@ -613,7 +1277,8 @@ public class ParallelPollingIMAPMailSource implements MailSource {
 
         @Override
         public String toString() {
-            return "ProcessResult [highestUid=" + highestUid + ", processedCount=" + processedCount + ", took=" + took + "]";
+            return "ProcessResult [highestUid=" + highestUid + ", processedCount=" + processedCount + ", took=" + took + ", complete="
+                    + complete + "]";
         }
 
     }
@@ -33,8 +33,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -43,22 +45,25 @@ import java.util.regex.Pattern;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.Session;
-import javax.mail.Store;
 
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 
 import com.sun.mail.pop3.POP3Folder;
+import com.sun.mail.pop3.POP3Message;
 
 import de.saly.elasticsearch.importer.imap.maildestination.MailDestination;
 import de.saly.elasticsearch.importer.imap.state.State;
 import de.saly.elasticsearch.importer.imap.state.StateManager;
 import de.saly.elasticsearch.importer.imap.support.IMAPUtils;
+import de.saly.elasticsearch.importer.imap.support.MessageWindowReader;
+import de.saly.elasticsearch.importer.imap.support.StorePool;
+import de.saly.elasticsearch.importer.imap.support.StorePool.PooledStore;
 
 public class ParallelPollingPOPMailSource implements MailSource {
 
-    private final ExecutorService es;
+    private ExecutorService es;
+    private volatile boolean closed;
     private MailDestination mailDestination;
     private final String password;
     private final Properties props;
@@ -67,22 +72,33 @@ public class ParallelPollingPOPMailSource implements MailSource {
     private final String user;
     protected final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
     private boolean deleteExpungedMessages = true;
+    private int fetchWindowSize = 500;
+    private StorePool storePool;
 
     public ParallelPollingPOPMailSource(final Properties props, final int threadCount, final String user, final String password) {
         super();
         this.props = props;
         this.threadCount = threadCount < 1 ? 1 : threadCount;
-        this.es = Executors.newFixedThreadPool(threadCount);
         this.user = user;
         this.password = password;
     }
 
     @Override
     public void close() {
-        if (es != null) {
+
+        closed = true;
+
+        synchronized (this) {
 
             logger.info("Initiate shutdown");
-            es.shutdown();
+
+            if (es != null) {
+                es.shutdown();
+            }
+
+            if (storePool != null) {
+                storePool.close();
+            }
             /*try {
                 if (es.awaitTermination(2, TimeUnit.SECONDS)) {
                     logger.info("Shutdown completed gracefully");
@@ -131,6 +147,24 @@ public class ParallelPollingPOPMailSource implements MailSource {
         return threadCount;
     }
 
+    /**
+     * @return the injected (shared) executor or a private pool with threadCount threads if none was injected
+     */
+    public synchronized ExecutorService getExecutorService() {
+        if (es == null) {
+            es = Executors.newFixedThreadPool(threadCount);
+        }
+        return es;
+    }
+
+    public synchronized StorePool getStorePool() {
+        if (storePool == null) {
+            // one connection for the folder traversal and one for each thread
+            storePool = new StorePool(props, user, password).maxSize(threadCount + 1);
+        }
+        return storePool;
+    }
+
     @Override
     public void setMailDestination(final MailDestination mailDestination) {
         this.mailDestination = mailDestination;
@@ -141,12 +175,30 @@ public class ParallelPollingPOPMailSource implements MailSource {
     public void setStateManager(final StateManager stateManager) {
         this.stateManager = stateManager;
     }
+
+    @Override
+    public synchronized void setExecutorService(final ExecutorService es) {
+        this.es = es;
+    }
+
+    @Override
+    public synchronized void setStorePool(final StorePool storePool) {
+        this.storePool = storePool;
+    }
     
+    /**
+     * @param fetchWindowSize how many message headers are fetched (and held in memory) at once
+     */
+    public ParallelPollingPOPMailSource setFetchWindowSize(final int fetchWindowSize) {
+        this.fetchWindowSize = fetchWindowSize < 1 ? 1 : fetchWindowSize;
+        return this;
+    }
+
     public void setDeleteExpungedMessages(final boolean deleteExpungedMessages) {
         this.deleteExpungedMessages = deleteExpungedMessages;
     }
 
-    private ProcessResult process(final int messageCount, final int start, final String folderName) {
+    private ProcessResult process(final int messageCount, final int start, final Folder folder) {
 
         final long startTime = System.currentTimeMillis();
 
@@ -159,6 +211,8 @@ public class ParallelPollingPOPMailSource implements MailSource {
         }
         final int block = netCount / threadCount;
 
+        final String folderName = folder.getFullName();
+        final Queue<int[]> slices = new ConcurrentLinkedQueue<int[]>();
         final List<Future<ProcessResult>> fl = new ArrayList<Future<ProcessResult>>();
 
         logger.debug(netCount + "/" + threadCount + "=" + block);
@@ -177,18 +231,26 @@ public class ParallelPollingPOPMailSource implements MailSource {
 
             logger.debug("Schedule: " + _start + " - " + _end);
 
-            final Future<ProcessResult> f = es.submit(new Callable<ProcessResult>() {
+            slices.add(new int[] { _start, _end });
+        }
+
+        // the calling thread works on its already opened folder, so we need at most threadCount-1 additional workers
+        final int workers = Math.min(threadCount - 1, slices.size() - 1);
+
+        for (int i = 0; i < workers; i++) {
+
+            final Future<ProcessResult> f = getExecutorService().submit(new Callable<ProcessResult>() {
 
                 @Override
                 public ProcessResult call() throws Exception {
-                    return processMessageSlice(_start, _end, folderName);
+                    return processMessageSlices(slices, folderName);
                 }
             });
 
             fl.add(f);
         }
 
-        int processedCount = 0;
+        int processedCount = processMessageSlices(slices, folder);
 
         for (final Future<ProcessResult> fu : fl) {
             try {
@@ -205,46 +267,87 @@ public class ParallelPollingPOPMailSource implements MailSource {
 
     }
 
-    private ProcessResult processMessageSlice(final int start, final int end, final String folderName) throws Exception {
+    private ProcessResult processMessageSlices(final Queue<int[]> slices, final String folderName) throws Exception {
 
         final long startTime = System.currentTimeMillis();
-        final Store store = Session.getInstance(props).getStore();
-        store.connect(user, password);
-        final Folder folder = store.getFolder(folderName);
 
-        IMAPUtils.open(folder);
+        // never block here, the calling thread already holds a connection and processes all slices left over
+        final PooledStore pooledStore = getStorePool().tryBorrow();
+
+        if (pooledStore == null) {
+            logger.debug("No free connection for additional worker on {}", folderName);
+            return new ProcessResult(0, 0);
+        }
+
+        try {
+            final int processedCount = processMessageSlices(slices, pooledStore.openFolder(folderName));
+            return new ProcessResult(processedCount, System.currentTimeMillis() + 1 - startTime);
+        } finally {
+            getStorePool().release(pooledStore);
+        }
+    }
+
+    private int processMessageSlices(final Queue<int[]> slices, final Folder folder) {
+
+        int processedCount = 0;
+        int[] slice;
+
+        while (!Thread.currentThread().isInterrupted() && (slice = slices.poll()) != null) {
+            try {
+                processedCount += processMessageSlice(slice[0], slice[1], folder);
+            } catch (final Exception e) {
+                logger.error("Unable to process mails {} - {} due to {}", e, slice[0], slice[1], e.toString());
+            }
+        }
+
+        return processedCount;
+    }
+
+    private int processMessageSlice(final int start, final int end, final Folder folder) throws Exception {
+
+        MessageWindowReader reader = null;
 
         try {
 
-            final Message[] msgs = folder.getMessages(start, end);
-            folder.fetch(msgs, IMAPUtils.FETCH_PROFILE_HEAD);
+            // headers of the next window are fetched while the current one is indexed
+            reader = new MessageWindowReader(folder, start, end, fetchWindowSize, IMAPUtils.FETCH_PROFILE_HEAD, getExecutorService());
 
             int processedCount = 0;
+            Message[] msgs;
 
-            for (final Message m : msgs) {
-                try {
-                    mailDestination.onMessage(m);
-                    processedCount++;
+            window: while ((msgs = reader.nextWindow()) != null) {
 
-                    if (Thread.currentThread().isInterrupted()) {
-                        break;
-                    }
+                for (final Message m : msgs) {
+                    try {
+                        mailDestination.onMessage(m);
+                        processedCount++;
 
-                } catch (final Exception e) {
-                    stateManager.onError("Unable to make indexable message", m, e);
-                    logger.error("Unable to make indexable message due to {}", e, e.toString());
+                        if (Thread.currentThread().isInterrupted()) {
+                            break window;
+                        }
 
-                    IMAPUtils.open(folder);
+                    } catch (final Exception e) {
+                        stateManager.onError("Unable to make indexable message", m, e);
+                        logger.error("Unable to make indexable message due to {}", e, e.toString());
+
+                        IMAPUtils.open(folder);
+                    }
+                }
+
+                // the folder caches the headers of every message it handed out
+                for (final Message m : msgs) {
+                    if (m instanceof POP3Message) {
+                        ((POP3Message) m).invalidate(true);
+                    }
                 }
             }
 
-            final long endTime = System.currentTimeMillis() + 1;
-            return new ProcessResult(processedCount, endTime - startTime);
+            return processedCount;
 
         } finally {
-
-            IMAPUtils.close(folder);
-            IMAPUtils.close(store);
+            if (reader != null) {
+                reader.close();
+            }
         }
 
     }
@@ -270,6 +373,7 @@ public class ParallelPollingPOPMailSource implements MailSource {
         int highestMsgNum = 1;
         Set localMailSet = new HashSet();
         try {
+            mailDestination.beginFolderSync(folder);
             localMailSet = new HashSet(mailDestination.getCurrentlyStoredMessageUids(folder)); // will
                                                                                                                    // not
                                                                                                                    // change
@@ -326,7 +430,7 @@ public class ParallelPollingPOPMailSource implements MailSource {
                 logger.error("Error evalutating new messages. Will download all ... due to {}", e, e.toString());
             }
 
-            final ProcessResult result = process(messageCount, highestMsgNum, folder.getFullName());
+            final ProcessResult result = process(messageCount, highestMsgNum, folder);
 
             riverState.setLastCount(result.getProcessedCount());
 
@@ -362,10 +466,9 @@ public class ParallelPollingPOPMailSource implements MailSource {
 
         logger.debug("fetch() - folderName: {}", "INBOX");
 
-        final Store store = Session.getInstance(props).getStore();
-        store.connect(user, password);
+        final PooledStore pooledStore = getStorePool().borrow();
 
-        final Folder folder = store.getDefaultFolder();
+        final Folder folder = pooledStore.getStore().getDefaultFolder();
         try {
 
             if (!folder.exists()) {
@@ -380,7 +483,7 @@ public class ParallelPollingPOPMailSource implements MailSource {
         } finally {
 
             IMAPUtils.close(folder);
-            IMAPUtils.close(store);
+            getStorePool().release(pooledStore);
         }
     }
 
@@ -388,7 +491,7 @@ public class ParallelPollingPOPMailSource implements MailSource {
 
         if (folder != null) {
 
-            if (es == null || es.isShutdown() || es.isTerminated() || Thread.currentThread().isInterrupted()) {
+            if (closed || Thread.currentThread().isInterrupted()) {
 
                 logger.warn("Stop processing of mails due to mail source is closed");
                 return;
@@ -26,10 +26,15 @@
 package de.saly.elasticsearch.importer.imap.state;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.Store;
 import javax.mail.internet.MimeMessage;
 
 import org.codehaus.jackson.map.ObjectMapper;
@@ -47,10 +52,13 @@ public class ElasticsearchStateManager implements StateManager {
 
     private static final String ERRORS_ID = "errors";
     private static final String FOLDERSTATE_ID = "folderstate";
+    private static final String FOLDERS_ID = "folders";
     private static final String RIVERSTATE_TYPE = "imapriverstate";
     private Client client;
     private String index;
     private final ObjectMapper mapper = new ObjectMapper();
+    // store url -> folder names, only for stores which have a registry
+    private final Map<String, Set<String>> folderRegistries = new HashMap<String, Set<String>>();
     protected final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
 
     public ElasticsearchStateManager client(final Client client) {
@@ -72,9 +80,13 @@ public class ElasticsearchStateManager implements StateManager {
                         .get();
 
                 if (!response.isSourceEmpty()) {
-                    return mapper.readValue(response.getSourceAsString(), new TypeReference<State>() {
+                    final State rs = mapper.readValue(response.getSourceAsString(), new TypeReference<State>() {
                     });
 
+                    // missing in states written by older versions
+                    rs.setFolderFullName(folder.getFullName());
+                    rs.setStoreUrl(folder.getStore().getURLName().toString());
+                    return rs;
                 }
             }
         } catch (final Exception ex) {
@@ -83,12 +95,36 @@ public class ElasticsearchStateManager implements StateManager {
 
         final State rs = new State();
         rs.setFolderUrl(folder.getURLName().toString());
+        rs.setFolderFullName(folder.getFullName());
+        rs.setStoreUrl(folder.getStore().getURLName().toString());
         // rs.setLastUid(1L);
         rs.setExists(true);
         return rs;
 
     }
 
+    @Override
+    public synchronized Set<String> getFolderNames(final Store store) throws MessagingException {
+
+        final Set<String> folderNames = getFolderRegistry(store.getURLName().toString());
+        return folderNames == null ? null : new TreeSet<String>(folderNames);
+    }
+
+    @Override
+    public synchronized void setFolderNames(final Store store, final Set<String> folderNames) throws MessagingException {
+
+        final String storeUrl = store.getURLName().toString();
+        final Set<String> registry = new TreeSet<String>(folderNames);
+
+        try {
+            writeFolderRegistry(storeUrl, registry);
+        } catch (final Exception ex) {
+            throw new MessagingException("Unable to set folder registry", ex);
+        }
+
+        folderRegistries.put(storeUrl, registry);
+    }
+
     public String index() {
         return index;
     }
@@ -138,6 +174,8 @@ public class ElasticsearchStateManager implements StateManager {
             client.prepareIndex(index(), RIVERSTATE_TYPE, FOLDERSTATE_ID + "_" + state.getFolderUrl().hashCode())
                     .setSource(mapper.writeValueAsString(state)).execute().actionGet();
 
+            updateFolderRegistry(state);
+
             logger.debug("set riverstate done");
         } catch (final Exception ex) {
             throw new MessagingException("Unable to set river state", ex);
@@ -145,6 +183,66 @@ public class ElasticsearchStateManager implements StateManager {
 
     }
 
+    /**
+     * @return the cached registry, null if there is none for this store
+     */
+    private Set<String> getFolderRegistry(final String storeUrl) throws MessagingException {
+
+        if (folderRegistries.containsKey(storeUrl)) {
+            return folderRegistries.get(storeUrl);
+        }
+
+        Set<String> registry = null;
+
+        try {
+
+            waitForCluster();
+
+            if (client.admin().indices().prepareExists(index()).execute().actionGet().isExists()) {
+
+                final GetResponse response = client.prepareGet(index(), RIVERSTATE_TYPE, FOLDERS_ID + "_" + storeUrl.hashCode()).execute()
+                        .get();
+
+                if (!response.isSourceEmpty()) {
+                    final FolderRegistry stored = mapper.readValue(response.getSourceAsString(), new TypeReference<FolderRegistry>() {
+                    });
+                    registry = stored.getFolders() == null ? new TreeSet<String>() : new TreeSet<String>(stored.getFolders());
+                }
+            }
+        } catch (final Exception ex) {
+            throw new MessagingException("Unable to get folder registry", ex);
+        }
+
+        folderRegistries.put(storeUrl, registry);
+        return registry;
+    }
+
+    private synchronized void updateFolderRegistry(final State state) throws MessagingException, IOException {
+
+        if (state.getStoreUrl() == null || state.getFolderFullName() == null) {
+            return;
+        }
+
+        final Set<String> registry = getFolderRegistry(state.getStoreUrl());
+
+        // only maintained once it was created, an incomplete registry would hide stale folders
+        if (registry == null) {
+            return;
+        }
+
+        final boolean changed = state.isExists() ? registry.add(state.getFolderFullName()) : registry.remove(state.getFolderFullName());
+
+        if (changed) {
+            logger.debug("Folder registry of {} changed, now {} folders", state.getStoreUrl(), registry.size());
+            writeFolderRegistry(state.getStoreUrl(), registry);
+        }
+    }
+
+    private void writeFolderRegistry(final String storeUrl, final Set<String> registry) throws IOException {
+        client.prepareIndex(index(), RIVERSTATE_TYPE, FOLDERS_ID + "_" + storeUrl.hashCode())
+                .setSource(mapper.writeValueAsString(new FolderRegistry(storeUrl, registry))).execute().actionGet();
+    }
+
     private void waitForCluster() throws IOException {
         waitForCluster(ClusterHealthStatus.YELLOW, TimeValue.timeValueSeconds(30));
     }
@@ -165,6 +263,40 @@ public class ElasticsearchStateManager implements StateManager {
         }
     }
 
+    private static class FolderRegistry {
+        private String storeUrl;
+        private Set<String> folders;
+
+        @SuppressWarnings("unused")
+        public FolderRegistry() {
+            super();
+        }
+
+        public FolderRegistry(final String storeUrl, final Set<String> folders) {
+            super();
+            this.storeUrl = storeUrl;
+            this.folders = folders;
+        }
+
+        public Set<String> getFolders() {
+            return folders;
+        }
+
+        public String getStoreUrl() {
+            return storeUrl;
+        }
+
+        @SuppressWarnings("unused")
+        public void setFolders(final Set<String> folders) {
+            this.folders = folders;
+        }
+
+        @SuppressWarnings("unused")
+        public void setStoreUrl(final String storeUrl) {
+            this.storeUrl = storeUrl;
+        }
+    }
+
     private static class IndexableError {
         private final String errormsg;
         private final String folderurl;
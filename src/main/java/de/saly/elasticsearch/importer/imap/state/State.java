@@ -33,6 +33,10 @@ public class State {
 
     private String folderUrl;
 
+    private String folderFullName;
+
+    private String storeUrl;
+
     private long lastCount = -1;
 
     private Date lastIndexed;
@@ -45,6 +49,10 @@ public class State {
 
     private Long uidValidity;
 
+    private Long highestModSeq;
+    private Long messageCount;
+    private Long uidNext;
+
     @Override
     public boolean equals(final Object obj) {
         if (this == obj) {
@@ -71,6 +79,17 @@ public class State {
         return folderUrl;
     }
 
+    public String getFolderFullName() {
+        return folderFullName;
+    }
+
+    /**
+     * @return the url of the store (mailbox) the folder belongs to, without password
+     */
+    public String getStoreUrl() {
+        return storeUrl;
+    }
+
     public long getLastCount() {
         return lastCount;
     }
@@ -95,6 +114,18 @@ public class State {
         return uidValidity;
     }
 
+    public Long getHighestModSeq() {
+        return highestModSeq;
+    }
+
+    public Long getMessageCount() {
+        return messageCount;
+    }
+
+    public Long getUidNext() {
+        return uidNext;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -115,6 +146,14 @@ public class State {
         this.folderUrl = folderUrl;
     }
 
+    public void setFolderFullName(final String folderFullName) {
+        this.folderFullName = folderFullName;
+    }
+
+    public void setStoreUrl(final String storeUrl) {
+        this.storeUrl = storeUrl;
+    }
+
     public void setLastCount(final long lastCount) {
         this.lastCount = lastCount;
     }
@@ -139,9 +178,21 @@ public class State {
         this.uidValidity = uidValidity;
     }
 
+    public void setHighestModSeq(final Long highestModSeq) {
+        this.highestModSeq = highestModSeq;
+    }
+
+    public void setMessageCount(final Long messageCount) {
+        this.messageCount = messageCount;
+    }
+
+    public void setUidNext(final Long uidNext) {
+        this.uidNext = uidNext;
+    }
+
     @Override
     public String toString() {
-        return "RiverState [folderUrl=" + folderUrl + ", uidValidity=" + uidValidity + ", lastUid=" + lastUid + ", lastSchedule="
+        return "RiverState [folderUrl=" + folderUrl + ", uidValidity=" + uidValidity + ", highestModSeq=" + highestModSeq + ", messageCount=" + messageCount + ", uidNext=" + uidNext + ", lastUid=" + lastUid + ", lastSchedule="
                 + lastSchedule + ", lastIndexed=" + lastIndexed + ", lastTook=" + lastTook + ", exists=" + exists + ", lastCount="
                 + lastCount + "]";
     }
@@ -25,14 +25,30 @@
  **********************************************************************************************************************/
 package de.saly.elasticsearch.importer.imap.state;
 
+import java.util.Set;
+
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.Store;
 
 public interface StateManager {
 
     public abstract State getRiverState(Folder folder) throws MessagingException;
 
+    /**
+     * The folder registry contains the full names of all folders of a store which have a state and are not marked as
+     * not existing. It is kept up to date by {@link #setRiverState(State)} once it is created.
+     * 
+     * @return the registered folder names or null if there is no registry for this store yet
+     */
+    public Set<String> getFolderNames(Store store) throws MessagingException;
+
+    /**
+     * Create or replace the folder registry of a store
+     */
+    public void setFolderNames(Store store, Set<String> folderNames) throws MessagingException;
+
     public abstract void onError(String errmsg, Folder folder, Exception e);
 
     public abstract void onError(String errmsg, Message msg, Exception e);
@@ -0,0 +1,104 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.importer.imap.support;
+
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.MimePart;
+
+/**
+ * Decides which attachments are downloaded and indexed. Only the MIME type and the size reported by the server (for
+ * IMAP from the BODYSTRUCTURE, the size of the transfer encoded part) are used, so rejected parts are never
+ * downloaded. The max. size applies to the decoded content like the cut off in
+ * {@link IndexableMailMessage.ESAttachment}, so the reported size of base64 encoded parts is converted to an estimated
+ * decoded size.
+ */
+public class AttachmentFilter {
+
+    public static final AttachmentFilter ACCEPT_ALL = new AttachmentFilter(null, -1);
+
+    private final List<String> mimeTypes;
+    private final long maxSize;
+
+    /**
+     * @param mimeTypes accepted MIME types like "application/pdf" or "image/*", null or empty to accept all types
+     * @param maxSize max. size in bytes, -1 for no limit
+     */
+    public AttachmentFilter(final List<String> mimeTypes, final long maxSize) {
+        super();
+        this.mimeTypes = mimeTypes == null || mimeTypes.isEmpty() ? null : mimeTypes;
+        this.maxSize = maxSize;
+    }
+
+    public boolean accept(final Part part) throws MessagingException {
+
+        if (maxSize >= 0 && decodedSize(part) > maxSize) {
+            return false;
+        }
+
+        if (mimeTypes == null) {
+            return true;
+        }
+
+        for (final String mimeType : mimeTypes) {
+            if (part.isMimeType(mimeType)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return max. size in bytes, -1 for no limit
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the size of the decoded content, estimated from the transfer encoded size (base64 needs 4 bytes for 3,
+     *         line breaks are not subtracted so the estimate is never too small), -1 if unknown
+     */
+    static long decodedSize(final Part part) throws MessagingException {
+
+        final long size = part.getSize();
+
+        if (size > 0 && part instanceof MimePart && "base64".equalsIgnoreCase(((MimePart) part).getEncoding())) {
+            return size * 3 / 4;
+        }
+
+        // quoted-printable and the other encodings never shrink the content
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "AttachmentFilter [mimeTypes=" + mimeTypes + ", maxSize=" + maxSize + "]";
+    }
+}
@@ -0,0 +1,126 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.importer.imap.support;
+
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+/**
+ * Limits the bytes of documents which are handed over to the bulk processor but not yet acknowledged by
+ * Elasticsearch. Threads which want to add a document block while the budget is exhausted, so a slow cluster slows down
+ * the mail fetching instead of filling up the heap.
+ */
+public class ByteBudget {
+
+    private final long maxBytes;
+    private long usedBytes;
+    private long waitCount;
+    private long waitMillis;
+    private long maxWaitMillis;
+
+    public ByteBudget(final long maxBytes) {
+        super();
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return true if the bytes were acquired, false if this would exceed the budget
+     */
+    public synchronized boolean tryAcquire(final long bytes) {
+
+        if (!fits(bytes)) {
+            return false;
+        }
+
+        usedBytes += bytes;
+        return true;
+    }
+
+    /**
+     * Acquire the bytes, blocks until enough bytes are released. A single document larger than the whole budget is
+     * admitted as soon as nothing else is pending.
+     */
+    public synchronized void acquire(final long bytes) throws InterruptedException {
+
+        if (!fits(bytes)) {
+
+            final long start = System.currentTimeMillis();
+
+            try {
+                while (!fits(bytes)) {
+                    wait();
+                }
+            } finally {
+                final long took = System.currentTimeMillis() - start;
+                waitCount++;
+                waitMillis += took;
+                maxWaitMillis = Math.max(maxWaitMillis, took);
+            }
+        }
+
+        usedBytes += bytes;
+    }
+
+    public synchronized void release(final long bytes) {
+        usedBytes = Math.max(0, usedBytes - bytes);
+        notifyAll();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return how often a thread had to wait for the budget
+     */
+    public synchronized long getWaitCount() {
+        return waitCount;
+    }
+
+    /**
+     * @return the time all threads waited for the budget in total
+     */
+    public synchronized long getWaitMillis() {
+        return waitMillis;
+    }
+
+    public synchronized long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ByteBudget [used=" + new ByteSizeValue(usedBytes) + ", max=" + new ByteSizeValue(maxBytes) + ", waitCount=" + waitCount
+                + ", waitMillis=" + waitMillis + ", maxWaitMillis=" + maxWaitMillis + "]";
+    }
+
+    private boolean fits(final long bytes) {
+        return usedBytes == 0 || usedBytes + bytes <= maxBytes;
+    }
+}
@@ -25,41 +25,192 @@
  **********************************************************************************************************************/
 package de.saly.elasticsearch.importer.imap.support;
 
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
-import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortOrder;
 
+/**
+ * Deletes all documents matching a query. The ids are streamed with a scroll sorted by _doc (no source, no fields) into
+ * fixed size bulk deletes which are executed concurrently, the number of bulks in flight is limited. No refresh is
+ * done, the caller decides when the deletes need to be visible.
+ */
 public class DeleteByQuery {
 
-    public static BulkResponse deleteByQuery(final Client client, final String index, final String[] types,
-            final QueryBuilder queryBuilder) {
+    public static final int DEFAULT_BULK_SIZE = 1000;
+
+    public static final int DEFAULT_CONCURRENT_BULKS = 4;
+
+    private static final TimeValue SCROLL_KEEPALIVE = TimeValue.timeValueMinutes(1);
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 10000;
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger(DeleteByQuery.class.getName());
+
+    /**
+     * @return the number of deleted documents
+     */
+    public static long deleteByQuery(final Client client, final String index, final String[] types, final QueryBuilder queryBuilder)
+            throws IOException {
+        return deleteByQuery(client, index, types, queryBuilder, DEFAULT_BULK_SIZE, DEFAULT_CONCURRENT_BULKS);
+    }
+
+    /**
+     * @param bulkSize deletes per bulk request
+     * @param concurrentBulks max. number of bulk requests in flight
+     * @return the number of deleted documents
+     */
+    public static long deleteByQuery(final Client client, final String index, final String[] types, final QueryBuilder queryBuilder,
+            final int bulkSize, final int concurrentBulks) throws IOException {
+
+        final long start = System.currentTimeMillis();
+        final Semaphore inFlight = new Semaphore(concurrentBulks);
+        final AtomicLong deleted = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
 
-        //TODO use delete by query plugin
-        //https://github.com/elastic/elasticsearch/tree/2.3/plugins/delete-by-query
-        final int size = 10000;
-        
-        final SearchRequestBuilder searchBuilder = client.prepareSearch().setIndices(index).setTypes(types).setQuery(queryBuilder).setSize(size);
-        
-        SearchResponse deleteResponse = searchBuilder.get();
+        long scanned = 0;
+        long lastProgress = start;
 
-        final BulkRequestBuilder brb = client.prepareBulk();
+        // _doc is the cheapest sort order, the replacement for the deprecated scan search type
+        SearchResponse scrollResp = client.prepareSearch().setIndices(index).setTypes(types).addSort("_doc", SortOrder.ASC)
+                .setQuery(queryBuilder).setFetchSource(false).setNoFields().setScroll(SCROLL_KEEPALIVE).setSize(bulkSize).execute()
+                .actionGet();
+
+        final long total = scrollResp.getHits().getTotalHits();
+
+        if (total == 0) {
+            clearScroll(client, scrollResp.getScrollId());
+            return 0;
+        }
 
-        while (deleteResponse.getHits().getTotalHits() > 0) {
-            for (final SearchHit hit : deleteResponse.getHits()) {
-                brb.add(new DeleteRequest(hit.getIndex(), hit.getType(), hit.getId()));
+        try {
+
+            BulkRequestBuilder bulk = client.prepareBulk();
+
+            // unlike a scan the first response already contains hits
+            while (failure.get() == null && scrollResp.getHits().getHits().length > 0) {
+
+                for (final SearchHit hit : scrollResp.getHits()) {
+
+                    bulk.add(new DeleteRequest(hit.getIndex(), hit.getType(), hit.getId()));
+                    scanned++;
+
+                    if (bulk.numberOfActions() >= bulkSize) {
+                        execute(bulk, inFlight, deleted, failed, failure);
+                        bulk = client.prepareBulk();
+                    }
+                }
+
+                final long now = System.currentTimeMillis();
+
+                if (now - lastProgress >= PROGRESS_INTERVAL_MILLIS) {
+                    lastProgress = now;
+                    logger.info("Delete from {} in progress, {}/{} scanned, {} deleted ({} docs/s)", index, scanned, total, deleted.get(),
+                            throughput(deleted.get(), now - start));
+                }
+
+                scrollResp = client.prepareSearchScroll(scrollResp.getScrollId()).setScroll(SCROLL_KEEPALIVE).execute().actionGet();
             }
-            
-            brb.setRefresh(true).get();
-            
-            deleteResponse = searchBuilder.get();
+
+            if (bulk.numberOfActions() > 0 && failure.get() == null) {
+                execute(bulk, inFlight, deleted, failed, failure);
+            }
+
+            // wait for the bulks in flight
+            inFlight.acquire(concurrentBulks);
+            inFlight.release(concurrentBulks);
+
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while deleting from " + index, e);
+        } finally {
+            clearScroll(client, scrollResp.getScrollId());
+        }
+
+        final long took = System.currentTimeMillis() - start;
+
+        if (failure.get() != null) {
+            throw new IOException("Unable to delete from " + index + " after " + deleted.get() + " deleted documents", failure.get());
+        }
+
+        if (failed.get() > 0) {
+            // the remaining documents would otherwise be left behind silently
+            throw new IOException("Unable to delete " + failed.get() + " documents from " + index + ", " + deleted.get() + " deleted in "
+                    + took + " ms");
+        }
+
+        logger.info("Delete from {} finished, {} deleted in {} ms ({} docs/s)", index, deleted.get(), took, throughput(deleted.get(), took));
+
+        return deleted.get();
+    }
+
+    private static void execute(final BulkRequestBuilder bulk, final Semaphore inFlight, final AtomicLong deleted, final AtomicLong failed,
+            final AtomicReference<Throwable> failure) throws InterruptedException {
+
+        inFlight.acquire();
+
+        try {
+            bulk.execute(new ActionListener<BulkResponse>() {
+
+                @Override
+                public void onResponse(final BulkResponse response) {
+                    try {
+                        for (final BulkItemResponse item : response) {
+                            if (item.isFailed()) {
+                                failed.incrementAndGet();
+                                logger.debug("Unable to delete {} due to {}", item.getId(), item.getFailureMessage());
+                            } else if (((DeleteResponse) item.getResponse()).isFound()) {
+                                deleted.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+
+                @Override
+                public void onFailure(final Throwable e) {
+                    failure.compareAndSet(null, e);
+                    inFlight.release();
+                }
+            });
+        } catch (final RuntimeException e) {
+            inFlight.release();
+            throw e;
         }
-        
-        return null;
     }
 
+    private static long throughput(final long docs, final long millis) {
+        return millis == 0 ? docs : docs * 1000 / millis;
+    }
+
+    private static void clearScroll(final Client client, final String scrollId) {
+
+        if (scrollId == null) {
+            return;
+        }
+
+        try {
+            client.prepareClearScroll().addScrollId(scrollId).execute().actionGet();
+        } catch (final Exception e) {
+            // expires anyway
+            logger.debug("Unable to clear scroll due to {}", e.toString());
+        }
+    }
 }
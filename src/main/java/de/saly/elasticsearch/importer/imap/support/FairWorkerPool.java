@@ -0,0 +1,235 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.importer.imap.support;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+
+/**
+ * Fixed number of worker threads shared by all mailboxes. Every mailbox submits its tasks through its own
+ * {@link MailboxExecutor} which has a separate queue and a limit of concurrently running tasks. Workers serve the
+ * mailboxes with pending tasks round robin, so one huge mailbox cannot starve the others.
+ */
+public class FairWorkerPool {
+
+    private final LinkedList<MailboxExecutor> ready = new LinkedList<MailboxExecutor>();
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private boolean shutdown;
+    protected final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
+
+    public FairWorkerPool(final int size) {
+        super();
+
+        for (int i = 0; i < (size < 1 ? 1 : size); i++) {
+            final Thread t = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "imap-worker-" + i);
+            t.setDaemon(true);
+            workers.add(t);
+            t.start();
+        }
+
+        logger.info("Started {} shared workers", workers.size());
+    }
+
+    /**
+     * @param maxRunning how many tasks of this mailbox may run at the same time
+     */
+    public MailboxExecutor newMailboxExecutor(final String name, final int maxRunning) {
+        return new MailboxExecutor(name, maxRunning < 1 ? 1 : maxRunning);
+    }
+
+    public int getSize() {
+        return workers.size();
+    }
+
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+
+    private void work() {
+
+        while (true) {
+
+            final MailboxExecutor mailbox;
+            final Runnable task;
+
+            synchronized (this) {
+
+                while (!shutdown && ready.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if (shutdown) {
+                    return;
+                }
+
+                mailbox = ready.removeFirst();
+                task = mailbox.tasks.removeFirst();
+                mailbox.running++;
+
+                // back to the end of the line
+                if (mailbox.isReady()) {
+                    ready.addLast(mailbox);
+                }
+            }
+
+            try {
+                task.run();
+            } catch (final Throwable e) {
+                logger.error("Uncaught error in task of {} due to {}", e, mailbox.name, e.toString());
+            } finally {
+                synchronized (this) {
+                    mailbox.running--;
+
+                    if (mailbox.isReady() && !ready.contains(mailbox)) {
+                        ready.addLast(mailbox);
+                    }
+
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * The view of one mailbox on the shared pool. Shutting it down does not affect the pool or other mailboxes.
+     */
+    public class MailboxExecutor extends AbstractExecutorService {
+
+        private final String name;
+        private final int maxRunning;
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+        private int running;
+        private boolean closed;
+
+        private MailboxExecutor(final String name, final int maxRunning) {
+            super();
+            this.name = name;
+            this.maxRunning = maxRunning;
+        }
+
+        @Override
+        public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+
+            final long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+
+            synchronized (FairWorkerPool.this) {
+                while (!isTerminated()) {
+                    final long wait = deadline - System.currentTimeMillis();
+
+                    if (wait <= 0) {
+                        return false;
+                    }
+
+                    FairWorkerPool.this.wait(wait);
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+
+            synchronized (FairWorkerPool.this) {
+
+                if (closed || shutdown) {
+                    throw new RejectedExecutionException("Executor for " + name + " is shut down");
+                }
+
+                tasks.addLast(command);
+
+                if (isReady() && !ready.contains(this)) {
+                    ready.addLast(this);
+                }
+
+                FairWorkerPool.this.notifyAll();
+            }
+        }
+
+        @Override
+        public boolean isShutdown() {
+            synchronized (FairWorkerPool.this) {
+                return closed || shutdown;
+            }
+        }
+
+        @Override
+        public boolean isTerminated() {
+            synchronized (FairWorkerPool.this) {
+                return isShutdown() && tasks.isEmpty() && running == 0;
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            synchronized (FairWorkerPool.this) {
+                closed = true;
+            }
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            synchronized (FairWorkerPool.this) {
+                closed = true;
+                final List<Runnable> pending = new ArrayList<Runnable>(tasks);
+                tasks.clear();
+                ready.remove(this);
+                FairWorkerPool.this.notifyAll();
+                return pending;
+            }
+        }
+
+        @Override
+        public String toString() {
+            synchronized (FairWorkerPool.this) {
+                return "MailboxExecutor [name=" + name + ", queued=" + tasks.size() + ", running=" + running + ", maxRunning=" + maxRunning
+                        + "]";
+            }
+        }
+
+        private boolean isReady() {
+            return !tasks.isEmpty() && running < maxRunning;
+        }
+    }
+}
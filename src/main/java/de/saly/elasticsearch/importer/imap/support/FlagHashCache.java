@@ -0,0 +1,105 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.importer.imap.support;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The flaghashcodes (uid -> flaghashcode) of the locally stored messages of one folder, kept between two runs so that
+ * flag change detection does not read them from the index again. Only valid as long as the uid validity does not change.
+ */
+public class FlagHashCache {
+
+    private final long uidValidity;
+    private final Map<Long, Integer> flaghashcodes = new HashMap<Long, Integer>();
+    // true if the flaghashcodes of all locally stored messages were loaded once
+    private boolean complete;
+
+    public FlagHashCache(final long uidValidity) {
+        super();
+        this.uidValidity = uidValidity;
+    }
+
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    public synchronized Integer get(final long uid) {
+        return flaghashcodes.get(uid);
+    }
+
+    public synchronized void put(final long uid, final int flaghashcode) {
+        flaghashcodes.put(uid, flaghashcode);
+    }
+
+    public synchronized void putAll(final Map<Long, Integer> flaghashcodes) {
+        this.flaghashcodes.putAll(flaghashcodes);
+    }
+
+    /**
+     * @return the uids which are not cached
+     */
+    public synchronized List<Long> getMissing(final Collection<Long> uids) {
+
+        final List<Long> missing = new ArrayList<Long>();
+
+        for (final Long uid : uids) {
+            if (!flaghashcodes.containsKey(uid)) {
+                missing.add(uid);
+            }
+        }
+
+        return missing;
+    }
+
+    /**
+     * Drop the messages which are not on the server anymore, uids are never reused so this only frees memory
+     */
+    public synchronized void retainAll(final Collection<Long> uids) {
+        flaghashcodes.keySet().retainAll(uids);
+    }
+
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    public synchronized void setComplete(final boolean complete) {
+        this.complete = complete;
+    }
+
+    public synchronized int size() {
+        return flaghashcodes.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FlagHashCache [uidValidity=" + uidValidity + ", size=" + flaghashcodes.size() + ", complete=" + complete + "]";
+    }
+}
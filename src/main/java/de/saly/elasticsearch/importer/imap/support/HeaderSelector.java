@@ -0,0 +1,97 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.importer.imap.support;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps the configured header names (see headers_to_fields) case insensitive to their field names. Built once, the
+ * lookup per message header does not allocate.
+ */
+public class HeaderSelector {
+
+    public static final HeaderSelector NONE = new HeaderSelector(null);
+
+    private final Map<String, String> fieldNames = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+
+    /**
+     * @param headerNames header names like "Message-ID", null or empty to select no headers
+     */
+    public HeaderSelector(final List<String> headerNames) {
+        super();
+
+        if (headerNames != null) {
+            for (final String headerName : headerNames) {
+                if (!fieldNames.containsKey(headerName)) {
+                    fieldNames.put(headerName, toFieldName(headerName));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the field name for the header or null if the header is not selected
+     */
+    public String getFieldName(final String headerName) {
+        return fieldNames.isEmpty() || headerName == null ? null : fieldNames.get(headerName);
+    }
+
+    public boolean isEmpty() {
+        return fieldNames.isEmpty();
+    }
+
+    /**
+     * @return an empty map to collect the selected headers of one message
+     */
+    public Map<String, String> newSelection() {
+        return fieldNames.isEmpty() ? Collections.<String, String> emptyMap() : new HashMap<String, String>(fieldNames.size() * 2);
+    }
+
+    /**
+     * "Message-ID" becomes "header_message_id"
+     */
+    static String toFieldName(final String headerName) {
+
+        final StringBuilder sb = new StringBuilder("header_".length() + headerName.length()).append("header_");
+
+        for (int i = 0; i < headerName.length(); i++) {
+            final char c = headerName.charAt(i);
+            final boolean keep = c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == ' ';
+            sb.append(keep ? Character.toLowerCase(c) : '_');
+        }
+
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "HeaderSelector " + fieldNames;
+    }
+}
@@ -0,0 +1,262 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.importer.imap.support;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns html into plain text in one linear pass without regular expressions. Tags and comments are removed, the
+ * content of script and style elements is dropped, entities are decoded and whitespace is collapsed (a run of
+ * whitespace which contains a line break becomes one line break, otherwise one space). Block level tags like p or br
+ * separate words. A '&lt;' which does not start a tag is kept as text.
+ */
+public final class HtmlTextExtractor {
+
+    private static final Map<String, Character> ENTITIES = new HashMap<String, Character>();
+
+    private static final String[] BLOCK_TAGS = { "br", "p", "div", "li", "tr", "td", "th", "h1", "h2", "h3", "h4", "h5", "h6", "table",
+            "ul", "ol", "blockquote", "hr", "pre", "title" };
+
+    // whitespace pending to be written before the next character
+    private static final int WS_NONE = 0;
+    private static final int WS_SPACE = 1;
+    private static final int WS_LINE = 2;
+
+    // longest entity between '&' and ';', e.g. "#x10FFFF"
+    private static final int MAX_ENTITY_LENGTH = 10;
+
+    static {
+        ENTITIES.put("amp", '&');
+        ENTITIES.put("lt", '<');
+        ENTITIES.put("gt", '>');
+        ENTITIES.put("quot", '"');
+        ENTITIES.put("apos", '\'');
+        ENTITIES.put("nbsp", '\u00A0');
+        ENTITIES.put("copy", '\u00A9');
+        ENTITIES.put("reg", '\u00AE');
+        ENTITIES.put("trade", '\u2122');
+        ENTITIES.put("euro", '\u20AC');
+        ENTITIES.put("pound", '\u00A3');
+        ENTITIES.put("ndash", '\u2013');
+        ENTITIES.put("mdash", '\u2014');
+        ENTITIES.put("hellip", '\u2026');
+        ENTITIES.put("laquo", '\u00AB');
+        ENTITIES.put("raquo", '\u00BB');
+        ENTITIES.put("lsquo", '\u2018');
+        ENTITIES.put("rsquo", '\u2019');
+        ENTITIES.put("ldquo", '\u201C');
+        ENTITIES.put("rdquo", '\u201D');
+        ENTITIES.put("bull", '\u2022');
+        ENTITIES.put("middot", '\u00B7');
+        ENTITIES.put("auml", '\u00E4');
+        ENTITIES.put("ouml", '\u00F6');
+        ENTITIES.put("uuml", '\u00FC');
+        ENTITIES.put("Auml", '\u00C4');
+        ENTITIES.put("Ouml", '\u00D6');
+        ENTITIES.put("Uuml", '\u00DC');
+        ENTITIES.put("szlig", '\u00DF');
+        ENTITIES.put("eacute", '\u00E9');
+        ENTITIES.put("egrave", '\u00E8');
+        ENTITIES.put("agrave", '\u00E0');
+        ENTITIES.put("ccedil", '\u00E7');
+    }
+
+    private HtmlTextExtractor() {
+
+    }
+
+    public static String extract(final String html) {
+
+        if (html == null) {
+            return null;
+        }
+
+        final int len = html.length();
+        final StringBuilder sb = new StringBuilder(len / 2);
+        int ws = WS_NONE;
+        int i = 0;
+        // once there is no '>' left every further '<' is text, so the rest is not searched again for each of them
+        boolean tagsLeft = true;
+
+        while (i < len) {
+
+            final char c = html.charAt(i);
+
+            if (c == '<' && tagsLeft && i + 1 < len && isTagStart(html.charAt(i + 1))) {
+
+                if (html.startsWith("<!--", i)) {
+                    final int end = html.indexOf("-->", i + 4);
+                    i = end < 0 ? len : end + 3;
+                    continue;
+                }
+
+                final int end = html.indexOf('>', i + 1);
+
+                if (end < 0) {
+                    // not a tag (e.g. "a<b" in plain text), keep the '<' as text
+                    tagsLeft = false;
+                    continue;
+                }
+
+                final boolean closing = html.charAt(i + 1) == '/';
+                final int nameStart = closing ? i + 2 : i + 1;
+                int nameEnd = nameStart;
+                while (nameEnd < end && Character.isLetterOrDigit(html.charAt(nameEnd))) {
+                    nameEnd++;
+                }
+
+                i = end + 1;
+
+                if (!closing && (isTag(html, nameStart, nameEnd, "script") || isTag(html, nameStart, nameEnd, "style"))) {
+                    // skip the whole element
+                    final int close = indexOfTag(html, "</" + html.substring(nameStart, nameEnd), i);
+                    if (close < 0) {
+                        break;
+                    }
+                    final int closeEnd = html.indexOf('>', close);
+                    i = closeEnd < 0 ? len : closeEnd + 1;
+                    ws = Math.max(ws, WS_SPACE);
+                    continue;
+                }
+
+                if (isTag(html, nameStart, nameEnd, "br") || isTag(html, nameStart, nameEnd, "p")) {
+                    ws = WS_LINE;
+                } else if (isBlockTag(html, nameStart, nameEnd)) {
+                    ws = Math.max(ws, WS_SPACE);
+                }
+
+                continue;
+            }
+
+            int cp = c;
+            i++;
+
+            if (c == '&') {
+                final int semi = indexOfSemicolon(html, i);
+
+                if (semi > i) {
+                    final int decoded = decodeEntity(html, i, semi);
+
+                    if (decoded >= 0) {
+                        cp = decoded;
+                        i = semi + 1;
+                    }
+                }
+            }
+
+            if (cp <= Character.MAX_VALUE && isSpace((char) cp)) {
+                ws = Math.max(ws, cp == '\n' ? WS_LINE : WS_SPACE);
+                continue;
+            }
+
+            // no leading whitespace
+            if (ws != WS_NONE && sb.length() > 0) {
+                sb.append(ws == WS_LINE ? '\n' : ' ');
+            }
+
+            ws = WS_NONE;
+            sb.appendCodePoint(cp);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Entities are short, so a lonely '&amp;' must not scan the rest of the document
+     * 
+     * @return the index of the ';' within the next {@link #MAX_ENTITY_LENGTH} characters or -1
+     */
+    private static int indexOfSemicolon(final String html, final int from) {
+
+        final int to = Math.min(html.length(), from + MAX_ENTITY_LENGTH);
+
+        for (int j = from; j < to; j++) {
+            if (html.charAt(j) == ';') {
+                return j;
+            }
+        }
+
+        return -1;
+    }
+
+    private static boolean isSpace(final char c) {
+        return Character.isWhitespace(c) || c == '\u00A0';
+    }
+
+    private static boolean isTagStart(final char c) {
+        return Character.isLetter(c) || c == '/' || c == '!' || c == '?';
+    }
+
+    private static boolean isTag(final String html, final int start, final int end, final String name) {
+        return end - start == name.length() && html.regionMatches(true, start, name, 0, name.length());
+    }
+
+    private static boolean isBlockTag(final String html, final int start, final int end) {
+        for (final String name : BLOCK_TAGS) {
+            if (isTag(html, start, end, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Case insensitive search for a tag like "&lt;/script"
+     */
+    private static int indexOfTag(final String html, final String tag, final int from) {
+
+        int i = html.indexOf('<', from);
+
+        while (i >= 0 && i <= html.length() - tag.length()) {
+            if (html.regionMatches(true, i, tag, 0, tag.length())) {
+                return i;
+            }
+            i = html.indexOf('<', i + 1);
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the code point or -1 if this is not a known entity
+     */
+    private static int decodeEntity(final String html, final int start, final int end) {
+
+        if (html.charAt(start) == '#') {
+            try {
+                final boolean hex = end > start + 1 && (html.charAt(start + 1) == 'x' || html.charAt(start + 1) == 'X');
+                final int cp = hex ? Integer.parseInt(html.substring(start + 2, end), 16) : Integer.parseInt(html.substring(start + 1, end));
+                return Character.isValidCodePoint(cp) ? cp : -1;
+            } catch (final NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        final Character c = ENTITIES.get(html.substring(start, end));
+        return c == null ? -1 : c.charValue();
+    }
+}
@@ -37,6 +37,7 @@ import javax.mail.Store;
 import javax.mail.UIDFolder;
 
 import com.sun.mail.imap.IMAPFolder.FetchProfileItem;
+import com.sun.mail.imap.IMAPStore;
 
 public class IMAPUtils {
 
@@ -78,6 +79,14 @@ public class IMAPUtils {
 
     }
 
+    public static boolean hasCapability(final Store store, final String capability) {
+        try {
+            return store instanceof IMAPStore && ((IMAPStore) store).hasCapability(capability);
+        } catch (final Exception e) {
+            return false;
+        }
+    }
+
     public static void open(final Folder folder) throws MessagingException {
 
         if (folder != null && folder.exists() && !folder.isOpen() && (folder.getType() & Folder.HOLDS_MESSAGES) != 0) {
@@ -27,8 +27,9 @@ package de.saly.elasticsearch.importer.imap.support;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
@@ -38,27 +39,33 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 
-import javax.mail.BodyPart;
 import javax.mail.Header;
 import javax.mail.Message;
 import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
-import javax.mail.Multipart;
 import javax.mail.Part;
 import javax.mail.UIDFolder;
 import javax.mail.internet.InternetAddress;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
-import org.codehaus.jackson.annotate.JsonAnyGetter;
-import org.codehaus.jackson.map.DeserializationConfig;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.map.SerializationConfig;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
 
 import com.sun.mail.pop3.POP3Folder;
+import com.sun.mail.util.BASE64EncoderStream;
 
 public class IndexableMailMessage {
 
@@ -66,20 +73,46 @@ public class IndexableMailMessage {
 
     public static IndexableMailMessage fromJavaMailMessage(final Message jmm, final boolean withTextContent, final boolean withHtmlContent, final boolean preferHtmlContent, final boolean withAttachments,
             final boolean stripTags, List<String> headersToFields) throws MessagingException, IOException {
+        return fromJavaMailMessage(jmm, withTextContent, withHtmlContent, preferHtmlContent, withAttachments, stripTags,
+                new HeaderSelector(headersToFields), AttachmentFilter.ACCEPT_ALL);
+    }
+
+    /**
+     * For IMAP messages only the parts which are needed are downloaded, the message structure is already known from
+     * the BODYSTRUCTURE (see {@link IMAPUtils#FETCH_PROFILE_HEAD}). Attachments rejected by the filter are never
+     * downloaded.
+     */
+    public static IndexableMailMessage fromJavaMailMessage(final Message jmm, final boolean withTextContent, final boolean withHtmlContent, final boolean preferHtmlContent, final boolean withAttachments,
+            final boolean stripTags, final HeaderSelector headerSelector, final AttachmentFilter attachmentFilter) throws MessagingException, IOException {
         final IndexableMailMessage im = new IndexableMailMessage();
 
         @SuppressWarnings("unchecked")
         final Enumeration<Header> allHeaders = jmm.getAllHeaders();
 
-        final Set<IndexableHeader> headerList = new HashSet<IndexableHeader>();
+        // one pass for all and the selected headers, only the first header of a name is kept
+        final List<IndexableHeader> headerList = new ArrayList<IndexableHeader>();
+        final Set<String> headerNames = new HashSet<String>();
+        final Map<String, String> selectedHeaders = headerSelector.newSelection();
+
         while (allHeaders.hasMoreElements()) {
             final Header h = allHeaders.nextElement();
+
+            if (!headerNames.add(h.getName())) {
+                continue;
+            }
+
             headerList.add(new IndexableHeader(h.getName(), h.getValue()));
+
+            final String fieldName = headerSelector.getFieldName(h.getName());
+
+            if (fieldName != null && !selectedHeaders.containsKey(fieldName)) {
+                selectedHeaders.put(fieldName, h.getValue());
+            }
         }
 
         im.setHeaders(headerList.toArray(new IndexableHeader[headerList.size()]));
 
-        im.setSelectedHeaders(extractHeaders(im.getHeaders(), headersToFields));
+        im.setSelectedHeaders(selectedHeaders);
 
         if (jmm.getFolder() instanceof POP3Folder) {
             im.setPopId(((POP3Folder) jmm.getFolder()).getUID(jmm));
@@ -122,66 +155,56 @@ public class IndexableMailMessage {
             im.setBcc(Address.fromJavaMailAddress(jmm.getRecipients(RecipientType.BCC)));
         }
 
-        if (withTextContent) {
+        // text, html and attachments share one walk over the MIME tree
+        MimeWalker mime = null;
+
+        if (withTextContent || withHtmlContent) {
+            mime = MimeWalker.walk(jmm);
+        }
 
-            // try {
+        if (withTextContent) {
 
-            String textContent = getText(jmm, 0, preferHtmlContent);
+            String textContent = mime.getText(preferHtmlContent);
 
             if (stripTags) {
                 textContent = stripTags(textContent);
             }
 
             im.setTextContent(textContent);
-            // } catch (final Exception e) {
-            // logger.error("Unable to retrieve text content for message {} due to {}",
-            // e, ((MimeMessage) jmm).getMessageID(), e);
-            // }
         }
 
         if (withHtmlContent) { 
 
-            // try {
-
-            String htmlContent = getText(jmm, 0, true);
-
-            im.setHtmlContent(htmlContent);
-            // } catch (final Exception e) {
-            // logger.error("Unable to retrieve text content for message {} due to {}",
-            // e, ((MimeMessage) jmm).getMessageID(), e);
-            // }
+            im.setHtmlContent(mime.getText(true));
         }
 
         if (withAttachments) {
 
             try {
-                final Object content = jmm.getContent();
+
+                if (mime == null) {
+                    mime = MimeWalker.walk(jmm);
+                }
 
                 // look for attachments
-                if (jmm.isMimeType("multipart/*") && content instanceof Multipart) {
-                    List<ESAttachment> attachments = new ArrayList<ESAttachment>();
-
-                    final Multipart multipart = (Multipart) content;
-
-                    for (int i = 0; i < multipart.getCount(); i++) {
-                        final BodyPart bodyPart = multipart.getBodyPart(i);
-                        if (!Part.ATTACHMENT.equalsIgnoreCase(bodyPart.getDisposition()) && !StringUtils.isNotBlank(bodyPart.getFileName())) {
-                            continue; // dealing with attachments only
-                        }
-                        final InputStream is = bodyPart.getInputStream();
-                        final byte[] bytes = IOUtils.toByteArray(is);
-                        IOUtils.closeQuietly(is);
-                        attachments.add(new ESAttachment(bodyPart.getContentType(), bytes, bodyPart.getFileName()));
-                    }
+                List<ESAttachment> attachments = new ArrayList<ESAttachment>();
 
-                    if (!attachments.isEmpty()) {
-                        im.setAttachments(attachments.toArray(new ESAttachment[attachments.size()]));
-                        im.setAttachmentCount(im.getAttachments().length);
-                        attachments.clear();
-                        attachments = null;
+                for (final Part bodyPart : mime.getAttachmentParts()) {
+                    if (!attachmentFilter.accept(bodyPart)) {
+                        logger.debug("Skip attachment {} ({}, {} bytes)", bodyPart.getFileName(), bodyPart.getContentType(), bodyPart.getSize());
+                        continue;
                     }
+                    // read when the document is serialized
+                    attachments.add(new ESAttachment(bodyPart, attachmentFilter.getMaxSize()));
+                }
 
+                if (!attachments.isEmpty()) {
+                    im.setAttachments(attachments.toArray(new ESAttachment[attachments.size()]));
+                    im.setAttachmentCount(im.getAttachments().length);
+                    attachments.clear();
+                    attachments = null;
                 }
+
             } catch (final Exception e) {
                 logger.error("Error indexing attachments (message will be indexed but without attachments) due to {}", e, e.toString());
             }
@@ -194,109 +217,11 @@ public class IndexableMailMessage {
         return im;
     }
 
-    private static Map<String, String> extractHeaders(
-            IndexableHeader[] allHeaders, List<String> headersToFields) {
-
-        Map<String, String> map = new HashMap<>();
-        for(String headerName : headersToFields) {
-            for(IndexableHeader header : allHeaders) {
-                // e-mail headers are case insensitive
-                if(headerName.toLowerCase().equals(header.getName().toLowerCase())) {
-                    String fieldName = "header_" + headerName.replaceAll("[^A-Za-z0-9 ]", "_").toLowerCase();
-                    map.put(fieldName, header.getValue());
-                    break;
-                }
-            }
-        }
-        return map;
-    }
-
-
-    private static String getText(final Part p, int depth, final boolean preferHtmlContent) throws MessagingException, IOException {
-
-        if (depth >= 100) {
-            throw new IOException("Endless recursion detected ");
-        }
-
-        // TODO fix encoding for buggy encoding headers
-
-        if (p.isMimeType("text/*")) {
-
-            Object content = null;
-            try {
-                content = p.getContent();
-            } catch (final Exception e) {
-                logger.error("Unable to index the content of a message due to {}", e.toString());
-                return null;
-            }
-
-            if (content instanceof String) {
-                final String s = (String) p.getContent();
-                return s;
-
-            }
-
-            if (content instanceof InputStream) {
-
-                final InputStream in = (InputStream) content;
-                // TODO guess encoding with
-                // http://code.google.com/p/juniversalchardet/
-                final String s = IOUtils.toString(in, "UTF-8");
-                IOUtils.closeQuietly(in);
-                return s;
-
-            }
-
-            throw new MessagingException("Unknown content class representation: " + content.getClass());
-
-        }
-
-        if (p.isMimeType("multipart/alternative")) {
-            // prefer plain text over html text
-            final Multipart mp = (Multipart) p.getContent();
-            String text = null;
-            for (int i = 0; i < mp.getCount(); i++) {
-                final Part bp = mp.getBodyPart(i);
-                if (bp.isMimeType("text/html")) {
-                    if (text == null) {
-                        text = getText(bp, ++depth, preferHtmlContent);
-                    }
-		    if (preferHtmlContent) {
-                        return text;
-                    } else {
-                        continue;
-                    }
-                } else if (bp.isMimeType("text/plain")) {
-                    final String s = getText(bp, ++depth, preferHtmlContent);
-                    if (s != null && !preferHtmlContent) {
-                        return s;
-                    } else {
-                        continue;
-                    }
-                } else {
-                    return getText(bp, ++depth, preferHtmlContent);
-                }
-            }
-            return text;
-        } else if (p.isMimeType("multipart/*")) {
-            final Multipart mp = (Multipart) p.getContent();
-            for (int i = 0; i < mp.getCount(); i++) {
-                final String s = getText(mp.getBodyPart(i), ++depth, preferHtmlContent);
-                if (s != null) {
-                    return s;
-                }
-            }
-        }
-
-        return null;
-    }
-
-    private static String stripTags(final String text) {
-        if (text == null) {
-            return null;
-        }
-
-        return text.replaceAll("\\<.*?\\>", "");
+    /**
+     * @see HtmlTextExtractor
+     */
+    public static String stripTags(final String text) {
+        return HtmlTextExtractor.extract(text);
     }
 
     private int attachmentCount;
@@ -325,7 +250,8 @@ public class IndexableMailMessage {
 
     private String mailboxType;
 
-    private final static ObjectMapper mapper = new ObjectMapper();
+    // basic_date_time, joda formatters are thread safe
+    private final static DateTimeFormatter DATE_FORMAT = DateTimeFormat.forPattern("yyyyMMdd'T'HHmmss.SSSZ").withZoneUTC();
 
     private String popId;
 
@@ -345,19 +271,187 @@ public class IndexableMailMessage {
 
     private long uid;
 
-    static {
-        mapper.enable(SerializationConfig.Feature.INDENT_OUTPUT);
-        mapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-        mapper.configure(SerializationConfig.Feature.WRITE_DATES_AS_TIMESTAMPS, false);
-        mapper.setDateFormat(new SimpleDateFormat("yyyyMMdd'T'HHmmss.SSSZ")); //TODO THREAD safe?
-    }
-    
     public IndexableMailMessage() {
 
     }
 
+    /**
+     * @return the document as pretty printed JSON, for debugging. For indexing use {@link #toXContent(XContentBuilder)}
+     */
     public String build() throws IOException {
-        return mapper.writeValueAsString(this);
+        return toXContent(XContentFactory.jsonBuilder().prettyPrint()).string();
+    }
+
+    /**
+     * Streams the document into the builder, which may also be a SMILE builder. The selected headers are written as
+     * top level fields.
+     */
+    public XContentBuilder toXContent(final XContentBuilder builder) throws IOException {
+        return toXContent(builder, null);
+    }
+
+    /**
+     * Read the content of all attachments from the mail parts, must be called before the message is serialized by
+     * another thread than the one which fetched it
+     */
+    public void loadAttachments() {
+
+        if (attachments != null) {
+            for (final ESAttachment attachment : attachments) {
+                attachment.loadQuietly();
+            }
+        }
+    }
+
+    /**
+     * Like {@link #toXContent(XContentBuilder)}, but for JSON the content of attachments which are not loaded yet is
+     * base64 encoded straight from the mail part into the document bytes instead of being buffered as a whole.
+     */
+    public BytesReference toSource(final XContentType type) throws IOException {
+
+        final XContentBuilder builder = XContentFactory.contentBuilder(type);
+
+        if (type != XContentType.JSON) {
+            return toXContent(builder, null).bytes();
+        }
+
+        final List<ESAttachment> streamed = new ArrayList<ESAttachment>();
+        toXContent(builder, streamed);
+
+        if (streamed.isEmpty()) {
+            return builder.bytes();
+        }
+
+        // the builder cannot stream a value, so the attachments are written in place of their placeholders
+        final byte[] doc = builder.bytes().toBytes();
+        final BytesStreamOutput out = new BytesStreamOutput(doc.length);
+        int pos = 0;
+
+        for (final ESAttachment attachment : streamed) {
+            pos = copyUntil(doc, pos, attachment.contentPlaceholder(), out);
+            attachment.writeContent(out);
+            pos = copyUntil(doc, pos, attachment.sizePlaceholder(), out);
+            out.write(String.valueOf(attachment.getSize()).getBytes(StandardCharsets.US_ASCII));
+        }
+
+        out.write(doc, pos, doc.length - pos);
+        return out.bytes();
+    }
+
+    /**
+     * Copy everything up to the quoted placeholder and skip the placeholder
+     * 
+     * @return the position after the placeholder
+     */
+    private static int copyUntil(final byte[] doc, final int from, final String placeholder, final OutputStream out) throws IOException {
+
+        final byte[] quoted = ("\"" + placeholder + "\"").getBytes(StandardCharsets.US_ASCII);
+
+        outer: for (int i = from; i <= doc.length - quoted.length; i++) {
+            for (int j = 0; j < quoted.length; j++) {
+                if (doc[i + j] != quoted[j]) {
+                    continue outer;
+                }
+            }
+
+            out.write(doc, from, i - from);
+            return i + quoted.length;
+        }
+
+        throw new IOException("Placeholder " + placeholder + " not found");
+    }
+
+    private XContentBuilder toXContent(final XContentBuilder builder, final List<ESAttachment> streamed) throws IOException {
+
+        builder.startObject();
+        builder.field("attachmentCount", attachmentCount);
+
+        if (attachments == null) {
+            builder.nullField("attachments");
+        } else {
+            builder.startArray("attachments");
+            for (final ESAttachment attachment : attachments) {
+                attachment.toXContent(builder, streamed);
+            }
+            builder.endArray();
+        }
+
+        addressesField(builder, "bcc", bcc);
+        addressesField(builder, "cc", cc);
+        builder.field("contentType", contentType);
+        builder.field("flaghashcode", flaghashcode);
+
+        if (flags == null) {
+            builder.nullField("flags");
+        } else {
+            builder.startArray("flags");
+            for (final String flag : flags) {
+                builder.value(flag);
+            }
+            builder.endArray();
+        }
+
+        builder.field("folderFullName", folderFullName);
+        builder.field("folderUri", folderUri);
+
+        builder.field("from");
+        if (from == null) {
+            builder.nullValue();
+        } else {
+            from.toXContent(builder);
+        }
+
+        if (headers == null) {
+            builder.nullField("headers");
+        } else {
+            builder.startArray("headers");
+            for (final IndexableHeader header : headers) {
+                header.toXContent(builder);
+            }
+            builder.endArray();
+        }
+
+        builder.field("mailboxType", mailboxType);
+        builder.field("popId", popId);
+        dateField(builder, "receivedDate", receivedDate);
+        dateField(builder, "sentDate", sentDate);
+        builder.field("size", size);
+        builder.field("subject", subject);
+        builder.field("textContent", textContent);
+        builder.field("htmlContent", htmlContent);
+        addressesField(builder, "to", to);
+        builder.field("uid", uid);
+
+        if (selectedHeaders != null) {
+            for (final Map.Entry<String, String> header : selectedHeaders.entrySet()) {
+                builder.field(header.getKey(), header.getValue());
+            }
+        }
+
+        return builder.endObject();
+    }
+
+    private static void addressesField(final XContentBuilder builder, final String name, final Address[] addresses) throws IOException {
+
+        if (addresses == null) {
+            builder.nullField(name);
+            return;
+        }
+
+        builder.startArray(name);
+        for (final Address address : addresses) {
+            address.toXContent(builder);
+        }
+        builder.endArray();
+    }
+
+    private static void dateField(final XContentBuilder builder, final String name, final Date date) throws IOException {
+
+        if (date == null) {
+            builder.nullField(name);
+        } else {
+            builder.field(name, DATE_FORMAT.print(date.getTime()));
+        }
     }
 
     @Override
@@ -436,7 +530,6 @@ public class IndexableMailMessage {
         return headers;
     }
 
-    @JsonAnyGetter
     public Map<String,String> getSelectedHeaders() {
         return selectedHeaders;
     }
@@ -667,6 +760,10 @@ public class IndexableMailMessage {
             this.personal = personal;
         }
 
+        public XContentBuilder toXContent(final XContentBuilder builder) throws IOException {
+            return builder.startObject().field("email", email).field("personal", personal).endObject();
+        }
+
         @Override
         public String toString() {
             return "Address [email=" + email + ", personal=" + personal + "]";
@@ -678,7 +775,13 @@ public class IndexableMailMessage {
         private byte[] content;
         private String contentType;
         private String fileName;
-        private int size;
+        private long size;
+        // not null until the content is read from the mail part
+        private Part part;
+        private long maxSize = -1;
+        private String token;
+        // SHA-256 of the content if it is stored separately
+        private String hash;
 
         public ESAttachment() {
 
@@ -691,6 +794,20 @@ public class IndexableMailMessage {
             setFilename(filename);
         }
 
+        /**
+         * The content is read from the part when the document is serialized
+         * 
+         * @param maxSize content beyond this many bytes is cut off, -1 for no limit
+         */
+        public ESAttachment(final Part part, final long maxSize) throws MessagingException {
+            super();
+            setContentType(part.getContentType());
+            setFilename(part.getFileName());
+            this.part = part;
+            this.maxSize = maxSize;
+            this.token = UUID.randomUUID().toString();
+        }
+
         public byte[] getContent() {
             return content;
         }
@@ -703,14 +820,70 @@ public class IndexableMailMessage {
             return fileName;
         }
 
+        public String getHash() {
+            return hash;
+        }
+
         public String getName() {
             return fileName;
         }
 
-        public int getSize() {
+        public long getSize() {
             return size;
         }
 
+        /**
+         * Read the content from the mail part if not already done
+         */
+        public void load() throws IOException, MessagingException {
+
+            if (part == null) {
+                return;
+            }
+
+            final InputStream raw = part.getInputStream();
+            try {
+                setContent(IOUtils.toByteArray(bounded(raw)));
+
+                if (isCutOff(raw, size)) {
+                    logger.warn("Attachment {} cut off at {} bytes", fileName, maxSize);
+                }
+            } finally {
+                IOUtils.closeQuietly(raw);
+            }
+
+            part = null;
+        }
+
+        /**
+         * Like {@link #load()}, but if reading the part fails the attachment is indexed without content
+         */
+        void loadQuietly() {
+            try {
+                load();
+            } catch (final Exception e) {
+                logger.error("Unable to read attachment {}, it will be indexed without content due to {}", e, fileName, e.toString());
+                part = null;
+            }
+        }
+
+        /**
+         * Load the content and compute its SHA-256 hash. From now on only the hash is written to the mail document, the
+         * content is stored separately.
+         * 
+         * @return the hex encoded hash or null if the content could not be read
+         */
+        public String computeHash() {
+
+            loadQuietly();
+
+            if (hash == null && content != null) {
+                hash = MessageDigests.toHexString(MessageDigests.sha256().digest(content));
+            }
+
+            return hash;
+        }
+
         public void setContent(final byte[] content) {
             this.content = content;
             this.size = content != null ? content.length : 0;
@@ -728,10 +901,104 @@ public class IndexableMailMessage {
             this.fileName = name;
         }
 
-        public void setSize(final int size) {
+        public void setSize(final long size) {
             this.size = size;
         }
 
+        public XContentBuilder toXContent(final XContentBuilder builder) throws IOException {
+            return toXContent(builder, null);
+        }
+
+        /**
+         * @param streamed if not null the content of a not yet loaded attachment is not written, but a placeholder and
+         *            the attachment is added to this list
+         */
+        XContentBuilder toXContent(final XContentBuilder builder, final List<ESAttachment> streamed) throws IOException {
+
+            builder.startObject();
+
+            if (hash != null) {
+                builder.field("hash", hash);
+            } else if (part != null && streamed != null) {
+                streamed.add(this);
+                builder.field("content", contentPlaceholder());
+            } else {
+
+                loadQuietly();
+
+                if (content == null) {
+                    builder.nullField("content");
+                } else {
+                    // base64 in JSON, raw bytes in SMILE
+                    builder.field("content", content);
+                }
+            }
+
+            builder.field("contentType", contentType).field("filename", fileName).field("name", fileName);
+
+            if (part != null && streamed != null) {
+                builder.field("size", sizePlaceholder());
+            } else {
+                builder.field("size", size);
+            }
+
+            return builder.endObject();
+        }
+
+        String contentPlaceholder() {
+            return "attachment-content-" + token;
+        }
+
+        String sizePlaceholder() {
+            return "attachment-size-" + token;
+        }
+
+        /**
+         * Write the content base64 encoded as JSON string and remember its size. If reading the part fails the
+         * content is cut off, the document is still valid and the size is the number of bytes actually written.
+         */
+        void writeContent(final OutputStream out) throws IOException {
+
+            out.write('"');
+
+            final OutputStream base64 = new BASE64EncoderStream(new CloseShieldOutputStream(out), Integer.MAX_VALUE);
+            InputStream raw = null;
+            CountingInputStream counted = null;
+
+            try {
+                raw = part.getInputStream();
+                counted = new CountingInputStream(bounded(raw));
+                IOUtils.copyLarge(counted, base64);
+
+                if (isCutOff(raw, counted.getByteCount())) {
+                    logger.warn("Attachment {} cut off at {} bytes", fileName, maxSize);
+                }
+
+            } catch (final Exception e) {
+                logger.error("Unable to read attachment {}, content is cut off due to {}", e, fileName, e.toString());
+            } finally {
+                size = counted == null ? 0 : counted.getByteCount();
+                IOUtils.closeQuietly(raw);
+                // writes the padding
+                base64.close();
+            }
+
+            out.write('"');
+            part = null;
+        }
+
+        private InputStream bounded(final InputStream raw) {
+            return maxSize >= 0 ? new BoundedInputStream(raw, maxSize) : raw;
+        }
+
+        /**
+         * @param raw the unbounded stream of the part, positioned after the bytes read
+         * @return true if the limit was reached and the part has more bytes (an attachment of exactly maxSize bytes is
+         *         complete)
+         */
+        private boolean isCutOff(final InputStream raw, final long read) throws IOException {
+            return maxSize >= 0 && read >= maxSize && raw.read() != -1;
+        }
     }
 
     public static class IndexableHeader {
@@ -774,6 +1041,10 @@ public class IndexableMailMessage {
             return value;
         }
 
+        public XContentBuilder toXContent(final XContentBuilder builder) throws IOException {
+            return builder.startObject().field("name", name).field("value", value).endObject();
+        }
+
         @Override
         public int hashCode() {
             final int prime = 31;
@@ -0,0 +1,160 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.importer.imap.support;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+
+/**
+ * Reads a range of messages in windows of a fixed size instead of fetching the headers of the whole range up front.
+ * While the caller works on one window the headers of the next one are fetched in the background (double buffering).
+ * If the executor did not start the prefetch yet when the window is needed it is fetched by the caller, so this never
+ * waits for a free worker thread.
+ */
+public class MessageWindowReader {
+
+    private final Folder folder;
+    private final int end;
+    private final int windowSize;
+    private final FetchProfile fetchProfile;
+    private final Executor executor;
+    private int nextStart;
+    private FutureTask<Message[]> prefetch;
+    protected final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
+
+    /**
+     * @param start first message number (1 based)
+     * @param end last message number, inclusive
+     * @param executor runs the prefetch of the next window, null to fetch every window synchronously
+     */
+    public MessageWindowReader(final Folder folder, final int start, final int end, final int windowSize, final FetchProfile fetchProfile,
+            final Executor executor) {
+        super();
+        this.folder = folder;
+        this.end = end;
+        this.windowSize = windowSize < 1 ? 1 : windowSize;
+        this.fetchProfile = fetchProfile;
+        this.executor = executor;
+        this.nextStart = start;
+    }
+
+    /**
+     * @return the messages of the next window with the fetch profile applied or null if the range is exhausted
+     */
+    public Message[] nextWindow() throws MessagingException {
+
+        Message[] window;
+
+        if (prefetch != null && !prefetch.cancel(false)) {
+            window = get(prefetch);
+        } else {
+            window = fetchWindow(nextStart);
+        }
+
+        prefetch = null;
+
+        if (window == null) {
+            return null;
+        }
+
+        nextStart += window.length;
+
+        if (executor != null && nextStart <= end) {
+            prefetch = new FutureTask<Message[]>(new Callable<Message[]>() {
+
+                private final int start = nextStart;
+
+                @Override
+                public Message[] call() throws Exception {
+                    return fetchWindow(start);
+                }
+            });
+
+            try {
+                executor.execute(prefetch);
+            } catch (final RejectedExecutionException e) {
+                logger.debug("Unable to schedule prefetch due to {}", e.toString());
+                prefetch = null;
+            }
+        }
+
+        return window;
+    }
+
+    /**
+     * Cancel or wait for a pending prefetch, must be called before the folder is closed or handed over to another
+     * thread
+     */
+    public void close() {
+
+        if (prefetch != null && !prefetch.cancel(false)) {
+            try {
+                get(prefetch);
+            } catch (final MessagingException e) {
+                logger.debug("Discarded prefetch failed due to {}", e.toString());
+            }
+        }
+
+        prefetch = null;
+    }
+
+    private Message[] fetchWindow(final int start) throws MessagingException {
+
+        if (start > end) {
+            return null;
+        }
+
+        final Message[] msgs = folder.getMessages(start, Math.min(start + windowSize - 1, end));
+        folder.fetch(msgs, fetchProfile);
+        return msgs;
+    }
+
+    private static Message[] get(final FutureTask<Message[]> future) throws MessagingException {
+
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for prefetch", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof MessagingException) {
+                throw (MessagingException) e.getCause();
+            }
+            throw new MessagingException("Prefetch failed", e);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.importer.imap.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+
+/**
+ * Walks the MIME tree of a message and remembers its structure, so the text, the html text and the attachments are
+ * extracted without decoding a multipart or a text part twice. Parts are only decoded when they are reached and the
+ * nesting depth is bounded to protect against malicious messages.
+ */
+public class MimeWalker {
+
+    public static final int MAX_DEPTH = 100;
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger(MimeWalker.class.getName());
+
+    private final Node root;
+
+    private MimeWalker(final Node root) {
+        super();
+        this.root = root;
+    }
+
+    public static MimeWalker walk(final Part part) throws MessagingException, IOException {
+        return new MimeWalker(new Node(part, 0));
+    }
+
+    /**
+     * @param preferHtmlContent if true the html part of a multipart/alternative is used, otherwise the plain text part
+     * @return the text of the first text part or null if there is none
+     */
+    public String getText(final boolean preferHtmlContent) throws MessagingException, IOException {
+        return getText(root, preferHtmlContent);
+    }
+
+    /**
+     * @return the direct children of a multipart message which are attachments (by disposition or file name)
+     */
+    public List<Part> getAttachmentParts() throws MessagingException, IOException {
+
+        final List<Node> children = root.getChildren();
+
+        if (children == null) {
+            return Collections.emptyList();
+        }
+
+        final List<Part> attachments = new ArrayList<Part>();
+
+        for (final Node child : children) {
+            if (Part.ATTACHMENT.equalsIgnoreCase(child.part.getDisposition()) || StringUtils.isNotBlank(child.part.getFileName())) {
+                attachments.add(child.part);
+            }
+        }
+
+        return attachments;
+    }
+
+    private static String getText(final Node n, final boolean preferHtmlContent) throws MessagingException, IOException {
+
+        // TODO fix encoding for buggy encoding headers
+
+        if (n.text) {
+            return n.getContent();
+        }
+
+        if (n.alternative) {
+            // prefer plain text over html text
+            String text = null;
+            for (final Node bp : n.getChildren()) {
+                if (bp.html) {
+                    if (text == null) {
+                        text = getText(bp, preferHtmlContent);
+                    }
+                    if (preferHtmlContent) {
+                        return text;
+                    }
+                } else if (bp.plain) {
+                    final String s = getText(bp, preferHtmlContent);
+                    if (s != null && !preferHtmlContent) {
+                        return s;
+                    }
+                } else {
+                    return getText(bp, preferHtmlContent);
+                }
+            }
+            return text;
+        } else if (n.multipart) {
+            for (final Node bp : n.getChildren()) {
+                final String s = getText(bp, preferHtmlContent);
+                if (s != null) {
+                    return s;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static class Node {
+
+        private final Part part;
+        private final int depth;
+        private final boolean text;
+        private final boolean plain;
+        private final boolean html;
+        private final boolean multipart;
+        private final boolean alternative;
+        private List<Node> children;
+        private boolean loaded;
+        private String content;
+
+        Node(final Part part, final int depth) throws MessagingException, IOException {
+
+            if (depth >= MAX_DEPTH) {
+                throw new IOException("Endless recursion detected ");
+            }
+
+            this.part = part;
+            this.depth = depth;
+            text = part.isMimeType("text/*");
+            plain = text && part.isMimeType("text/plain");
+            html = text && !plain && part.isMimeType("text/html");
+            multipart = !text && part.isMimeType("multipart/*");
+            alternative = multipart && part.isMimeType("multipart/alternative");
+        }
+
+        /**
+         * @return the parts of a multipart, decoded on first access, or null if this is not a multipart
+         */
+        List<Node> getChildren() throws MessagingException, IOException {
+
+            if (!multipart || children != null) {
+                return children;
+            }
+
+            final Object mpContent = part.getContent();
+
+            if (mpContent instanceof Multipart) {
+                final Multipart mp = (Multipart) mpContent;
+                final List<Node> nodes = new ArrayList<Node>(mp.getCount());
+
+                for (int i = 0; i < mp.getCount(); i++) {
+                    final BodyPart bp = mp.getBodyPart(i);
+                    nodes.add(new Node(bp, depth + 1));
+                }
+
+                children = nodes;
+            } else {
+                children = Collections.emptyList();
+            }
+
+            return children;
+        }
+
+        String getContent() throws MessagingException, IOException {
+
+            if (loaded) {
+                return content;
+            }
+
+            loaded = true;
+
+            Object c = null;
+            try {
+                c = part.getContent();
+            } catch (final Exception e) {
+                logger.error("Unable to index the content of a message due to {}", e.toString());
+                return null;
+            }
+
+            if (c instanceof String) {
+                content = (String) c;
+                return content;
+            }
+
+            if (c instanceof InputStream) {
+
+                final InputStream in = (InputStream) c;
+                // TODO guess encoding with
+                // http://code.google.com/p/juniversalchardet/
+                content = IOUtils.toString(in, "UTF-8");
+                IOUtils.closeQuietly(in);
+                return content;
+            }
+
+            throw new MessagingException("Unknown content class representation: " + c.getClass());
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.importer.imap.support;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+
+import com.sun.mail.imap.IMAPStore;
+
+/**
+ * Pool of connected and authenticated stores for one mailbox. Each pooled store can keep one folder open (IMAP only)
+ * so that subsequent uses of the same folder need neither a login nor a SELECT. Idle stores are kept alive with NOOPs
+ * by a keepalive thread of this pool (so a slow server only delays its own checks) and evicted after they were unused
+ * for longer than maxIdle.
+ * <p>
+ * POP3 stores are not kept idle: closing the POP3 folder ends the session (QUIT) and the next open logs in again, so
+ * there is nothing to reuse. For POP3 the pool only limits the number of concurrent connections.
+ */
+public class StorePool {
+
+    private final Properties props;
+    private final String user;
+    private final String password;
+    private final LinkedList<PooledStore> idle = new LinkedList<PooledStore>();
+    private int maxSize = 5;
+    private int size;
+    private TimeValue maxIdle = TimeValue.timeValueMinutes(5);
+    private TimeValue keepAliveInterval = TimeValue.timeValueSeconds(60);
+    private ScheduledExecutorService keepAliveExecutor;
+    private ScheduledFuture<?> keepAlive;
+    private boolean closed;
+    protected final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
+
+    public StorePool(final Properties props, final String user, final String password) {
+        super();
+        this.props = props;
+        this.user = user;
+        this.password = password;
+    }
+
+    public StorePool maxSize(final int maxSize) {
+        this.maxSize = maxSize < 1 ? 1 : maxSize;
+        return this;
+    }
+
+    public StorePool maxIdle(final TimeValue maxIdle) {
+        this.maxIdle = maxIdle;
+        return this;
+    }
+
+    public StorePool keepAliveInterval(final TimeValue keepAliveInterval) {
+        this.keepAliveInterval = keepAliveInterval;
+        return this;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Borrow a connected store, blocks until one is available if the pool is exhausted
+     */
+    public PooledStore borrow() throws MessagingException {
+
+        while (true) {
+
+            PooledStore ps = null;
+
+            synchronized (this) {
+
+                while (!closed && idle.isEmpty() && size >= maxSize) {
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new MessagingException("Interrupted while waiting for a connection", e);
+                    }
+                }
+
+                if (closed) {
+                    throw new MessagingException("Store pool is closed");
+                }
+
+                if (!idle.isEmpty()) {
+                    ps = idle.removeFirst();
+                } else {
+                    size++;
+                }
+            }
+
+            if (ps == null) {
+                return create();
+            }
+
+            // health check, isConnected() issues a NOOP if the connection was not used recently
+            if (ps.store.isConnected()) {
+                return ps;
+            }
+
+            logger.debug("Discard stale connection for {}", user);
+            invalidate(ps);
+        }
+    }
+
+    /**
+     * Like {@link #borrow()} but returns null instead of blocking if the pool is exhausted
+     */
+    public PooledStore tryBorrow() throws MessagingException {
+
+        synchronized (this) {
+            if (closed || idle.isEmpty() && size >= maxSize) {
+                return null;
+            }
+        }
+
+        return borrow();
+    }
+
+    public void release(final PooledStore ps) {
+
+        if (ps == null) {
+            return;
+        }
+
+        if (!(ps.store instanceof IMAPStore)) {
+            // closing the POP3 folder quits the session, a pooled POP3 store would have to log in again anyway
+            invalidate(ps);
+            return;
+        }
+
+        synchronized (this) {
+
+            if (closed) {
+                size--;
+                ps.close();
+                return;
+            }
+
+            ps.lastUsed = System.currentTimeMillis();
+            idle.addFirst(ps);
+
+            if (keepAlive == null) {
+                keepAliveExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread t = new Thread(r, "store-pool-keepalive-" + user);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                keepAlive = keepAliveExecutor.scheduleWithFixedDelay(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        keepAlive();
+                    }
+                }, keepAliveInterval.millis(), keepAliveInterval.millis(), TimeUnit.MILLISECONDS);
+            }
+
+            notifyAll();
+        }
+    }
+
+    public void invalidate(final PooledStore ps) {
+
+        if (ps == null) {
+            return;
+        }
+
+        ps.close();
+
+        synchronized (this) {
+            size--;
+            notifyAll();
+        }
+    }
+
+    public void close() {
+
+        final List<PooledStore> toClose;
+
+        synchronized (this) {
+
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            if (keepAliveExecutor != null) {
+                keepAliveExecutor.shutdown();
+            }
+
+            toClose = new ArrayList<PooledStore>(idle);
+            size -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+
+        for (final PooledStore ps : toClose) {
+            ps.close();
+        }
+
+        logger.debug("Store pool for {} closed", user);
+    }
+
+    private PooledStore create() throws MessagingException {
+
+        try {
+            final Store store = Session.getInstance(props).getStore();
+            store.connect(user, password);
+            logger.debug("New pooled connection for {}", user);
+            return new PooledStore(store);
+        } catch (final MessagingException e) {
+            synchronized (this) {
+                size--;
+                notifyAll();
+            }
+            throw e;
+        } catch (final RuntimeException e) {
+            synchronized (this) {
+                size--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private void keepAlive() {
+
+        final List<PooledStore> toCheck;
+
+        synchronized (this) {
+            toCheck = new ArrayList<PooledStore>(idle);
+        }
+
+        final long now = System.currentTimeMillis();
+
+        for (final PooledStore ps : toCheck) {
+
+            // only one store at a time is taken out of the pool, so borrowers do not have to wait for the whole check
+            synchronized (this) {
+                if (closed || !idle.remove(ps)) {
+                    // borrowed meanwhile
+                    continue;
+                }
+            }
+
+            boolean healthy;
+
+            try {
+                healthy = now - ps.lastUsed < maxIdle.millis() && ps.store.isConnected()
+                        && (ps.folder == null || ps.folder.isOpen() && ps.folder.getMessageCount() >= 0);
+            } catch (final Exception e) {
+                healthy = false;
+            }
+
+            if (healthy) {
+                synchronized (this) {
+                    if (!closed) {
+                        idle.addLast(ps);
+                        notifyAll();
+                        continue;
+                    }
+                }
+            } else {
+                logger.debug("Evict idle or stale connection for {}", user);
+            }
+
+            invalidate(ps);
+        }
+    }
+
+    public static class PooledStore {
+
+        private final Store store;
+        private Folder folder;
+        private long lastUsed;
+
+        private PooledStore(final Store store) {
+            super();
+            this.store = store;
+        }
+
+        public Store getStore() {
+            return store;
+        }
+
+        /**
+         * Return the given folder opened read only, reuse the already selected folder if possible
+         */
+        public Folder openFolder(final String folderName) throws MessagingException {
+
+            if (folder != null && folder.getFullName().equals(folderName) && folder.isOpen()) {
+                // syncs the message count with the server (NOOP)
+                folder.getMessageCount();
+                return folder;
+            }
+
+            closeFolder();
+
+            folder = store.getFolder(folderName);
+            IMAPUtils.open(folder);
+            return folder;
+        }
+
+        public void closeFolder() {
+            IMAPUtils.close(folder);
+            folder = null;
+        }
+
+        private void close() {
+            closeFolder();
+            IMAPUtils.close(store);
+        }
+    }
+}
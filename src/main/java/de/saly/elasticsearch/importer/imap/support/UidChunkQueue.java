@@ -0,0 +1,175 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.importer.imap.support;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits an ascending list of UIDs into small UID ranges which worker threads pull from a shared queue. UID ranges
+ * are stable against concurrent expunges (unlike message numbers), an expunged message is just missing in its range.
+ */
+public class UidChunkQueue {
+
+    private final UidChunk[] chunks;
+    private final AtomicInteger next = new AtomicInteger();
+    private final CountDownLatch done;
+    private long highestUid;
+    private int processedCount;
+    private int failedCount;
+    // number of leading chunks which are all completed successfully
+    private int contiguousCount;
+
+    public UidChunkQueue(final long[] uids, final int chunkSize) {
+        super();
+
+        final int size = chunkSize < 1 ? 1 : chunkSize;
+        chunks = new UidChunk[(uids.length + size - 1) / size];
+
+        for (int i = 0; i < chunks.length; i++) {
+            final int from = i * size;
+            final int to = Math.min(from + size, uids.length) - 1;
+            chunks[i] = new UidChunk(i, uids[from], uids[to], to - from + 1);
+        }
+
+        done = new CountDownLatch(chunks.length);
+    }
+
+    /**
+     * @return the next unprocessed chunk or null if all chunks are taken
+     */
+    public UidChunk poll() {
+        final int i = next.getAndIncrement();
+        return i < chunks.length ? chunks[i] : null;
+    }
+
+    public boolean isEmpty() {
+        return next.get() >= chunks.length;
+    }
+
+    public int size() {
+        return chunks.length;
+    }
+
+    public synchronized void complete(final UidChunk chunk, final long chunkHighestUid, final int chunkProcessedCount) {
+        highestUid = Math.max(highestUid, chunkHighestUid);
+        processedCount += chunkProcessedCount;
+        chunk.completed = true;
+
+        while (contiguousCount < chunks.length && chunks[contiguousCount].completed) {
+            contiguousCount++;
+        }
+
+        done.countDown();
+    }
+
+    public synchronized void fail(final UidChunk chunk) {
+        failedCount++;
+        done.countDown();
+    }
+
+    public void await() throws InterruptedException {
+        done.await();
+    }
+
+    public boolean await(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    public synchronized long getHighestUid() {
+        return highestUid;
+    }
+
+    /**
+     * @return the highest uid below which all chunks are completed successfully (a failed chunk stops the checkpoint)
+     *         or 0 if the first chunk is not completed yet
+     */
+    public synchronized long getCheckpointUid() {
+        return contiguousCount == 0 ? 0 : chunks[contiguousCount - 1].endUid;
+    }
+
+    /**
+     * @return true if all chunks are completed successfully
+     */
+    public synchronized boolean isComplete() {
+        return contiguousCount == chunks.length;
+    }
+
+    /**
+     * @return the uid which can be persisted as the last uid of the folder: the highest uid seen if all chunks are
+     *         completed, otherwise the checkpoint uid so that failed or unprocessed chunks are retried on the next run
+     */
+    public synchronized long getPersistableUid() {
+        return isComplete() ? highestUid : getCheckpointUid();
+    }
+
+    public synchronized int getProcessedCount() {
+        return processedCount;
+    }
+
+    public synchronized int getFailedCount() {
+        return failedCount;
+    }
+
+    public static class UidChunk {
+        private final int index;
+        private final long startUid;
+        private final long endUid;
+        private final int count;
+        private boolean completed;
+
+        private UidChunk(final int index, final long startUid, final long endUid, final int count) {
+            super();
+            this.index = index;
+            this.startUid = startUid;
+            this.endUid = endUid;
+            this.count = count;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public long getStartUid() {
+            return startUid;
+        }
+
+        public long getEndUid() {
+            return endUid;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return "UidChunk [index=" + index + ", startUid=" + startUid + ", endUid=" + endUid + ", count=" + count + ", completed="
+                    + completed + "]";
+        }
+    }
+}
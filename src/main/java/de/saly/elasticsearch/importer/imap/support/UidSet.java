@@ -0,0 +1,160 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.importer.imap.support;
+
+import java.util.Arrays;
+
+/**
+ * Compact set of IMAP UIDs backed by a sorted long[] (8 bytes per UID instead of a boxed Long in a HashSet). UIDs can
+ * be added in any order, the set is sorted and deduplicated lazily before it is read.
+ */
+public class UidSet {
+
+    private long[] uids;
+    private int size;
+    private boolean sorted = true;
+
+    public UidSet() {
+        this(16);
+    }
+
+    public UidSet(final int initialCapacity) {
+        super();
+        uids = new long[initialCapacity < 1 ? 1 : initialCapacity];
+    }
+
+    /**
+     * @param uids will be copied
+     */
+    public static UidSet of(final long... uids) {
+        final UidSet set = new UidSet(uids.length);
+        System.arraycopy(uids, 0, set.uids, 0, uids.length);
+        set.size = uids.length;
+        set.sorted = false;
+        return set;
+    }
+
+    public void add(final long uid) {
+
+        if (size == uids.length) {
+            uids = Arrays.copyOf(uids, size + (size >> 1) + 1);
+        }
+
+        if (size > 0 && uid <= uids[size - 1]) {
+            sorted = false;
+        }
+
+        uids[size++] = uid;
+    }
+
+    public int size() {
+        compact();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(final long uid) {
+        compact();
+        return Arrays.binarySearch(uids, 0, size, uid) >= 0;
+    }
+
+    /**
+     * @return the uid at the given position in ascending order
+     */
+    public long get(final int index) {
+        compact();
+
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+
+        return uids[index];
+    }
+
+    /**
+     * @return a new set with all uids of this set which are not in other (linear merge of both sorted arrays)
+     */
+    public UidSet minus(final UidSet other) {
+        compact();
+        other.compact();
+
+        final UidSet result = new UidSet(Math.max(size - other.size, 16));
+
+        int j = 0;
+
+        for (int i = 0; i < size; i++) {
+            final long uid = uids[i];
+
+            while (j < other.size && other.uids[j] < uid) {
+                j++;
+            }
+
+            if (j == other.size || other.uids[j] != uid) {
+                result.uids = result.size == result.uids.length ? Arrays.copyOf(result.uids, result.size * 2) : result.uids;
+                result.uids[result.size++] = uid;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the uids in ascending order
+     */
+    public long[] toArray() {
+        compact();
+        return Arrays.copyOf(uids, size);
+    }
+
+    @Override
+    public String toString() {
+        compact();
+        return "UidSet [size=" + size + (size > 0 ? ", first=" + uids[0] + ", last=" + uids[size - 1] : "") + "]";
+    }
+
+    private void compact() {
+
+        if (sorted) {
+            return;
+        }
+
+        Arrays.sort(uids, 0, size);
+
+        int n = 0;
+
+        for (int i = 0; i < size; i++) {
+            if (n == 0 || uids[i] != uids[n - 1]) {
+                uids[n++] = uids[i];
+            }
+        }
+
+        size = n;
+        sorted = true;
+    }
+}
@@ -0,0 +1,71 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.imap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import de.saly.elasticsearch.importer.imap.support.FlagHashCache;
+
+public class FlagHashCacheTest {
+
+    @Test
+    public void testMissingUids() {
+        final FlagHashCache cache = new FlagHashCache(42);
+
+        final Map<Long, Integer> loaded = new HashMap<Long, Integer>();
+        loaded.put(1L, 11);
+        loaded.put(3L, 33);
+        cache.putAll(loaded);
+
+        assertEquals(Arrays.asList(2L, 4L), cache.getMissing(Arrays.asList(1L, 2L, 3L, 4L)));
+
+        cache.put(2L, 22);
+        assertEquals(Collections.singletonList(4L), cache.getMissing(Arrays.asList(1L, 2L, 3L, 4L)));
+        assertEquals(Integer.valueOf(22), cache.get(2L));
+    }
+
+    @Test
+    public void testRetainDropsExpungedMessages() {
+        final FlagHashCache cache = new FlagHashCache(42);
+        cache.put(1L, 11);
+        cache.put(2L, 22);
+        cache.put(3L, 33);
+
+        cache.retainAll(Arrays.asList(1L, 3L));
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get(2L));
+        assertEquals(Integer.valueOf(33), cache.get(3L));
+    }
+}
@@ -0,0 +1,57 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.imap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import de.saly.elasticsearch.importer.imap.support.HeaderSelector;
+
+public class HeaderSelectorTest {
+
+    @Test
+    public void testFieldNames() {
+        final HeaderSelector selector = new HeaderSelector(Arrays.asList("Message-ID", "X-Spam.Score"));
+
+        assertEquals("header_message_id", selector.getFieldName("Message-ID"));
+        assertEquals("header_message_id", selector.getFieldName("message-id"));
+        assertEquals("header_x_spam_score", selector.getFieldName("X-SPAM.SCORE"));
+        assertNull(selector.getFieldName("Subject"));
+        assertNull(selector.getFieldName(null));
+    }
+
+    @Test
+    public void testEmpty() {
+        assertTrue(HeaderSelector.NONE.isEmpty());
+        assertTrue(new HeaderSelector(null).newSelection().isEmpty());
+        assertNull(HeaderSelector.NONE.getFieldName("Message-ID"));
+    }
+}
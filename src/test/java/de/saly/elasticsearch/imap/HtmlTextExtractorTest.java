@@ -0,0 +1,77 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.imap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import de.saly.elasticsearch.importer.imap.support.HtmlTextExtractor;
+
+public class HtmlTextExtractorTest {
+
+    @Test
+    public void testTagsScriptsAndComments() {
+        assertEquals("Hello World", HtmlTextExtractor.extract("<html><head><title>Hello</title><style>p { color: red; }</style>"
+                + "<script type=\"text/javascript\">if (a < b) {}</script></head><body><!-- <b>hidden</b> --><b>World</b></body></html>"));
+        assertEquals("a\nb c", HtmlTextExtractor.extract("a<br/>b<div>c</div>"));
+        assertEquals("1 < 2", HtmlTextExtractor.extract("1 < 2"));
+        assertEquals("x", HtmlTextExtractor.extract("x<SCRIPT>y</Script>"));
+        assertNull(HtmlTextExtractor.extract(null));
+    }
+
+    @Test
+    public void testEntitiesAndWhitespace() {
+        assertEquals("Tom & Jerry \"quoted\" € ä A ©", HtmlTextExtractor.extract("Tom &amp; Jerry &quot;quoted&quot; &euro; &auml; &#65; &#xA9;"));
+        assertEquals("a b", HtmlTextExtractor.extract("  a&nbsp; \t b  "));
+        assertEquals("a\nb", HtmlTextExtractor.extract("a \r\n\r\n b"));
+        assertEquals("AT&T &unknown; & x", HtmlTextExtractor.extract("AT&T &unknown; & x"));
+    }
+
+    @Test
+    public void testUnterminated() {
+        // a '<' without a later '>' is text, like the former regex left it alone
+        assertEquals("text<a href=\"x", HtmlTextExtractor.extract("text<a href=\"x"));
+        assertEquals("if a<b then c", HtmlTextExtractor.extract("if a<b then c"));
+        assertEquals("a<b c<d", HtmlTextExtractor.extract("a<b c<d"));
+        assertEquals("text", HtmlTextExtractor.extract("text<script>var a;"));
+    }
+
+    @Test(timeout = 10000)
+    public void testManyAmpersandsWithoutSemicolon() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            sb.append("&a=").append(i % 10);
+        }
+        sb.append(" &amp;");
+
+        final String text = HtmlTextExtractor.extract(sb.toString());
+
+        assertEquals(sb.length() - 4, text.length());
+        assertEquals(" &", text.substring(text.length() - 2));
+    }
+}
@@ -0,0 +1,223 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.imap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.Test;
+
+import de.saly.elasticsearch.importer.imap.support.AttachmentFilter;
+import de.saly.elasticsearch.importer.imap.support.IndexableMailMessage;
+import de.saly.elasticsearch.importer.imap.support.IndexableMailMessage.Address;
+import de.saly.elasticsearch.importer.imap.support.IndexableMailMessage.ESAttachment;
+
+public class IndexableMailMessageTest {
+
+    @Test
+    public void testToXContent() throws Exception {
+
+        final Address from = new Address();
+        from.setEmail("a@b.c");
+
+        final IndexableMailMessage msg = new IndexableMailMessage();
+        msg.setUid(42);
+        msg.setSubject("subject");
+        msg.setFrom(from);
+        msg.setFlags(new String[] { "Seen" });
+        msg.setSentDate(new Date(0));
+        msg.setSelectedHeaders(Collections.singletonMap("header_message_id", "<1@b.c>"));
+
+        for (final XContentType type : new XContentType[] { XContentType.JSON, XContentType.SMILE }) {
+
+            final Map<String, Object> source = XContentHelper.convertToMap(msg.toXContent(XContentFactory.contentBuilder(type)).bytes(),
+                    false).v2();
+
+            assertEquals(42, ((Number) source.get("uid")).intValue());
+            assertEquals("subject", source.get("subject"));
+            assertEquals("19700101T000000.000+0000", source.get("sentDate"));
+            assertNull(source.get("receivedDate"));
+            assertEquals("a@b.c", ((Map<?, ?>) source.get("from")).get("email"));
+            assertEquals("Seen", ((List<?>) source.get("flags")).get(0));
+            assertEquals("<1@b.c>", source.get("header_message_id"));
+        }
+    }
+
+    @Test
+    public void testStreamedAttachment() throws Exception {
+
+        final byte[] bytes = new byte[100000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+
+        for (final XContentType type : new XContentType[] { XContentType.JSON, XContentType.SMILE }) {
+
+            final MimeBodyPart part = new MimeBodyPart();
+            part.setDataHandler(new DataHandler(new ByteArrayDataSource(bytes, "application/octet-stream")));
+            part.setFileName("a.bin");
+
+            final IndexableMailMessage msg = new IndexableMailMessage();
+            msg.setSubject("after");
+            msg.setAttachments(new ESAttachment[] { new ESAttachment(part, -1), new ESAttachment(part, 10),
+                    new ESAttachment(part, bytes.length) });
+
+            final Map<String, Object> source = XContentHelper.convertToMap(msg.toSource(type), false).v2();
+            final List<?> attachments = (List<?>) source.get("attachments");
+
+            final Map<?, ?> full = (Map<?, ?>) attachments.get(0);
+            assertEquals(bytes.length, ((Number) full.get("size")).intValue());
+            assertEquals("a.bin", full.get("filename"));
+            assertTrue(Arrays.equals(bytes, content(full.get("content"))));
+
+            final Map<?, ?> cut = (Map<?, ?>) attachments.get(1);
+            assertEquals(10, ((Number) cut.get("size")).intValue());
+            assertTrue(Arrays.equals(Arrays.copyOf(bytes, 10), content(cut.get("content"))));
+
+            // exactly at the limit is not cut off
+            final Map<?, ?> exact = (Map<?, ?>) attachments.get(2);
+            assertEquals(bytes.length, ((Number) exact.get("size")).intValue());
+            assertTrue(Arrays.equals(bytes, content(exact.get("content"))));
+
+            assertEquals("after", source.get("subject"));
+        }
+    }
+
+    @Test
+    public void testFailingAttachmentSize() throws Exception {
+
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(new DataSource() {
+
+            @Override
+            public InputStream getInputStream() throws IOException {
+                // 1000 bytes, then the connection breaks
+                return new SequenceInputStream(new ByteArrayInputStream(new byte[1000]), new InputStream() {
+
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException("connection reset");
+                    }
+                });
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                throw new IOException();
+            }
+
+            @Override
+            public String getContentType() {
+                return "application/octet-stream";
+            }
+
+            @Override
+            public String getName() {
+                return "a.bin";
+            }
+        }));
+
+        final IndexableMailMessage msg = new IndexableMailMessage();
+        msg.setAttachments(new ESAttachment[] { new ESAttachment(part, -1) });
+
+        final Map<String, Object> source = XContentHelper.convertToMap(msg.toSource(XContentType.JSON), false).v2();
+        final Map<?, ?> cut = (Map<?, ?>) ((List<?>) source.get("attachments")).get(0);
+
+        final byte[] content = content(cut.get("content"));
+        assertEquals(1000, content.length);
+        assertEquals(1000, ((Number) cut.get("size")).intValue());
+    }
+
+    @Test
+    public void testAttachmentFilterUsesDecodedSize() throws Exception {
+
+        final InternetHeaders headers = new InternetHeaders();
+        headers.setHeader("Content-Type", "application/octet-stream");
+        headers.setHeader("Content-Transfer-Encoding", "base64");
+
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        final OutputStream out = MimeUtility.encode(encoded, "base64");
+        out.write(new byte[1000]);
+        out.close();
+
+        final MimeBodyPart part = new MimeBodyPart(headers, encoded.toByteArray());
+        assertTrue(part.getSize() > 1100);
+
+        assertTrue(new AttachmentFilter(null, 1100).accept(part));
+        assertFalse(new AttachmentFilter(null, 900).accept(part));
+    }
+
+    @Test
+    public void testHashedAttachment() throws Exception {
+
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(new ByteArrayDataSource("abc".getBytes("US-ASCII"), "text/plain")));
+        part.setFileName("a.txt");
+
+        final ESAttachment attachment = new ESAttachment(part, -1);
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", attachment.computeHash());
+
+        final IndexableMailMessage msg = new IndexableMailMessage();
+        msg.setAttachments(new ESAttachment[] { attachment });
+
+        final Map<String, Object> source = XContentHelper.convertToMap(msg.toSource(XContentType.JSON), false).v2();
+        final Map<?, ?> hashed = (Map<?, ?>) ((List<?>) source.get("attachments")).get(0);
+
+        assertEquals(attachment.getHash(), hashed.get("hash"));
+        assertFalse(hashed.containsKey("content"));
+        assertEquals(3, ((Number) hashed.get("size")).intValue());
+        assertEquals("a.txt", hashed.get("filename"));
+    }
+
+    private static byte[] content(final Object value) throws Exception {
+        return value instanceof byte[] ? (byte[]) value : Base64.decode((String) value);
+    }
+}
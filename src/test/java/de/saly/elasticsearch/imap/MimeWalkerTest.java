@@ -0,0 +1,111 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.imap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import org.junit.Test;
+
+import de.saly.elasticsearch.importer.imap.support.MimeWalker;
+
+public class MimeWalkerTest {
+
+    @Test
+    public void testAlternativeAndAttachment() throws Exception {
+
+        final MimeMultipart alternative = new MimeMultipart("alternative");
+        alternative.addBodyPart(textPart("plain text", "plain"));
+        alternative.addBodyPart(textPart("<b>html text</b>", "html"));
+
+        final MimeBodyPart alternativePart = new MimeBodyPart();
+        alternativePart.setContent(alternative);
+
+        final MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setText("attached", "UTF-8");
+        attachment.setFileName("a.txt");
+        attachment.setDisposition(Part.ATTACHMENT);
+
+        final MimeMultipart mixed = new MimeMultipart("mixed");
+        mixed.addBodyPart(alternativePart);
+        mixed.addBodyPart(attachment);
+
+        final MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setContent(mixed);
+        message.saveChanges();
+
+        final MimeWalker mime = MimeWalker.walk(message);
+
+        assertEquals("plain text", mime.getText(false));
+        assertEquals("<b>html text</b>", mime.getText(true));
+
+        final List<Part> attachments = mime.getAttachmentParts();
+        assertEquals(1, attachments.size());
+        assertEquals("a.txt", attachments.get(0).getFileName());
+    }
+
+    @Test
+    public void testPlainMessage() throws Exception {
+
+        final MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText("just text", "UTF-8");
+        message.saveChanges();
+
+        final MimeWalker mime = MimeWalker.walk(message);
+
+        assertEquals("just text", mime.getText(false));
+        assertEquals("just text", mime.getText(true));
+        assertEquals(0, mime.getAttachmentParts().size());
+    }
+
+    @Test
+    public void testAlternativeWithoutHtml() throws Exception {
+
+        final MimeMultipart alternative = new MimeMultipart("alternative");
+        alternative.addBodyPart(textPart("plain only", "plain"));
+
+        final MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setContent(alternative);
+        message.saveChanges();
+
+        assertNull(MimeWalker.walk(message).getText(true));
+    }
+
+    private static MimeBodyPart textPart(final String text, final String subtype) throws Exception {
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setText(text, "UTF-8", subtype);
+        return part;
+    }
+}
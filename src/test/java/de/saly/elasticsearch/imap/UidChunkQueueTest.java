@@ -0,0 +1,112 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.imap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import de.saly.elasticsearch.importer.imap.support.UidChunkQueue;
+import de.saly.elasticsearch.importer.imap.support.UidChunkQueue.UidChunk;
+
+public class UidChunkQueueTest {
+
+    @Test
+    public void testChunks() {
+        final UidChunkQueue queue = new UidChunkQueue(new long[] { 1, 2, 5, 7, 8, 20, 21 }, 3);
+
+        assertEquals(3, queue.size());
+
+        final UidChunk first = queue.poll();
+        assertEquals(1, first.getStartUid());
+        assertEquals(5, first.getEndUid());
+        assertEquals(3, first.getCount());
+
+        queue.poll();
+        final UidChunk last = queue.poll();
+        assertEquals(21, last.getStartUid());
+        assertEquals(21, last.getEndUid());
+        assertEquals(1, last.getCount());
+
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testCheckpointOnlyAdvancesContiguously() {
+        final UidChunkQueue queue = new UidChunkQueue(new long[] { 1, 2, 3, 4, 5, 6, 7, 8 }, 2);
+        final UidChunk c0 = queue.poll();
+        final UidChunk c1 = queue.poll();
+        final UidChunk c2 = queue.poll();
+        final UidChunk c3 = queue.poll();
+
+        queue.complete(c1, 4, 2);
+        assertEquals(0, queue.getCheckpointUid());
+
+        queue.complete(c0, 2, 2);
+        assertEquals(4, queue.getCheckpointUid());
+
+        // a failed chunk stops the checkpoint, even if later chunks complete
+        queue.fail(c2);
+        queue.complete(c3, 8, 2);
+        assertEquals(4, queue.getCheckpointUid());
+        assertEquals(8, queue.getHighestUid());
+        assertEquals(6, queue.getProcessedCount());
+    }
+
+    @Test
+    public void testFailedChunkHoldsBackPersistableUid() {
+        final UidChunkQueue queue = new UidChunkQueue(new long[] { 1, 2, 3, 4, 5, 6 }, 2);
+        final UidChunk c0 = queue.poll();
+        final UidChunk c1 = queue.poll();
+        final UidChunk c2 = queue.poll();
+
+        queue.complete(c0, 2, 2);
+        queue.fail(c1);
+        queue.complete(c2, 6, 2);
+
+        assertFalse(queue.isComplete());
+        assertEquals(6, queue.getHighestUid());
+        // uids 3 and 4 must be fetched again, so only the uid before the failed chunk is persisted
+        assertEquals(2, queue.getPersistableUid());
+    }
+
+    @Test
+    public void testCompleteQueuePersistsHighestUid() {
+        final UidChunkQueue queue = new UidChunkQueue(new long[] { 1, 2, 3, 9 }, 2);
+        final UidChunk c0 = queue.poll();
+        final UidChunk c1 = queue.poll();
+
+        queue.complete(c1, 9, 2);
+        assertEquals(0, queue.getPersistableUid());
+
+        queue.complete(c0, 2, 2);
+        assertTrue(queue.isComplete());
+        assertEquals(9, queue.getPersistableUid());
+    }
+}
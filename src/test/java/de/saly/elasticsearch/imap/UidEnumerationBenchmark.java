@@ -0,0 +1,193 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.imap;
+
+import java.io.File;
+import java.util.Properties;
+
+import javax.mail.Folder;
+import javax.mail.Session;
+import javax.mail.URLName;
+
+import org.apache.commons.io.FileUtils;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.elasticsearch.search.SearchHit;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+
+import de.saly.elasticsearch.importer.imap.maildestination.ElasticsearchMailDestination;
+import de.saly.elasticsearch.importer.imap.support.UidSet;
+
+/**
+ * Compares the UID enumeration of a folder as it was done before (source loaded, UID parsed from the id, 1000 hits
+ * per page with 1 second keep alive) with {@link ElasticsearchMailDestination#getCurrentlyStoredMessageUidSet(Folder)}
+ * and with reading the UID as field data field. Not a unit test, run it with the number of documents as argument
+ * (default 1000000).
+ */
+public class UidEnumerationBenchmark {
+
+    private static final String INDEX = "uidbenchmark";
+    private static final String TYPE = "mail";
+    private static final int ROUNDS = 5;
+
+    public static void main(final String[] args) throws Exception {
+
+        final int docs = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        FileUtils.deleteQuietly(new File("target/benchmark"));
+
+        final Node node = NodeBuilder
+                .nodeBuilder()
+                .settings(
+                        Settings.settingsBuilder().put("path.home", "target/benchmark").put("cluster.name", "uidbenchmark")
+                                .put("index.number_of_shards", "5").put("index.number_of_replicas", "0").put("http.enabled", false))
+                .local(true).node();
+
+        try {
+            final Client client = node.client();
+            final Folder folder = new IMAPFolder("INBOX", '/', new IMAPStore(Session.getInstance(new Properties()), new URLName(
+                    "imap://benchmark@localhost")), false) {
+            };
+
+            final ElasticsearchMailDestination destination = new ElasticsearchMailDestination().client(client).setIndex(INDEX)
+                    .setType(TYPE);
+
+            // creates the index with the default mapping
+            destination.beginFolderSync(folder);
+
+            index(client, folder.getURLName().toString(), docs);
+            client.admin().indices().prepareRefresh(INDEX).get();
+
+            for (int round = 0; round < ROUNDS; round++) {
+
+                long start = System.nanoTime();
+                final int legacy = legacy(client, folder.getURLName().toString());
+                final long legacyMs = (System.nanoTime() - start) / 1000000;
+
+                start = System.nanoTime();
+                final UidSet lean = destination.getCurrentlyStoredMessageUidSet(folder);
+                final long leanMs = (System.nanoTime() - start) / 1000000;
+
+                start = System.nanoTime();
+                final int fieldData = fieldData(client, folder.getURLName().toString());
+                final long fieldDataMs = (System.nanoTime() - start) / 1000000;
+
+                if (legacy != docs || lean.size() != docs || fieldData != docs) {
+                    throw new IllegalStateException("Expected " + docs + " uids but got " + legacy + "/" + lean.size() + "/" + fieldData);
+                }
+
+                System.out.println("Round " + round + ": legacy " + legacyMs + " ms, lean " + leanMs + " ms, field data " + fieldDataMs
+                        + " ms for " + docs + " uids");
+            }
+
+        } finally {
+            node.close();
+            FileUtils.deleteQuietly(new File("target/benchmark"));
+        }
+    }
+
+    private static void index(final Client client, final String folderUri, final int docs) {
+
+        BulkRequestBuilder bulk = client.prepareBulk();
+
+        for (long uid = 1; uid <= docs; uid++) {
+
+            bulk.add(client.prepareIndex(INDEX, TYPE, uid + "::" + folderUri).setSource("uid", uid, "folderUri", folderUri,
+                    "folderFullName", "INBOX", "subject", "Benchmark message " + uid, "textContent", "Some text of message " + uid));
+
+            if (bulk.numberOfActions() == 5000 || uid == docs) {
+
+                if (bulk.get().hasFailures()) {
+                    throw new IllegalStateException("Bulk failed");
+                }
+
+                bulk = client.prepareBulk();
+            }
+        }
+    }
+
+    /**
+     * Like the lean enumeration, but the uid is read from the doc values
+     */
+    private static int fieldData(final Client client, final String folderUri) {
+
+        final UidSet uids = new UidSet(1024);
+
+        SearchResponse scrollResp = client.prepareSearch().setIndices(INDEX).setTypes(TYPE).setSearchType(SearchType.SCAN)
+                .setQuery(QueryBuilders.termQuery("folderUri", folderUri)).setFetchSource(false).setNoFields().addFieldDataField("uid")
+                .setScroll(TimeValue.timeValueMinutes(1)).setSize(5000).execute().actionGet();
+
+        while (true) {
+            scrollResp = client.prepareSearchScroll(scrollResp.getScrollId()).setScroll(TimeValue.timeValueMinutes(1)).execute()
+                    .actionGet();
+            boolean hitsRead = false;
+            for (final SearchHit hit : scrollResp.getHits()) {
+                hitsRead = true;
+                uids.add(((Number) hit.field("uid").getValue()).longValue());
+            }
+            if (!hitsRead) {
+                break;
+            }
+        }
+
+        return uids.size();
+    }
+
+    /**
+     * The enumeration as it was done before
+     */
+    private static int legacy(final Client client, final String folderUri) {
+
+        final UidSet uids = new UidSet(1024);
+
+        SearchResponse scrollResp = client.prepareSearch().setIndices(INDEX).setTypes(TYPE).setSearchType(SearchType.SCAN)
+                .setQuery(QueryBuilders.termQuery("folderUri", folderUri)).setScroll(new TimeValue(1000))
+                .setSize(1000).execute().actionGet();
+
+        while (true) {
+            scrollResp = client.prepareSearchScroll(scrollResp.getScrollId()).setScroll(new TimeValue(1000)).execute().actionGet();
+            boolean hitsRead = false;
+            for (final SearchHit hit : scrollResp.getHits()) {
+                hitsRead = true;
+                uids.add(Long.parseLong(hit.getId().split("::")[0]));
+            }
+            if (!hitsRead) {
+                break;
+            }
+        }
+
+        return uids.size();
+    }
+}
@@ -0,0 +1,83 @@
+/***********************************************************************************************************************
+ *
+ * Elasticsearch IMAP/Pop3 E-Mail Importer
+ * ==========================================
+ *
+ * Copyright (C) 2014 by Hendrik Saly (http://saly.de) and others.
+ *
+ * Contains (partially) copied code from Jörg Prante's Elasticsearch JDBC river (https://github.com/jprante/elasticsearch-river-jdbc)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ ***********************************************************************************************************************
+ *
+ * $Id:$
+ *
+ **********************************************************************************************************************/
+package de.saly.elasticsearch.imap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import de.saly.elasticsearch.importer.imap.support.UidSet;
+
+public class UidSetTest {
+
+    @Test
+    public void testSortAndDeduplicate() {
+        final UidSet set = new UidSet(2);
+        set.add(5);
+        set.add(3);
+        set.add(9);
+        set.add(3);
+        set.add(1);
+
+        assertEquals(4, set.size());
+        assertArrayEquals(new long[] { 1, 3, 5, 9 }, set.toArray());
+        assertTrue(set.contains(9));
+        assertFalse(set.contains(4));
+        assertEquals(5, set.get(2));
+    }
+
+    @Test
+    public void testMinus() {
+        final UidSet local = UidSet.of(10, 2, 4, 6, 8, 12);
+        final UidSet server = UidSet.of(1, 2, 3, 8, 12, 13);
+
+        assertArrayEquals(new long[] { 4, 6, 10 }, local.minus(server).toArray());
+        assertArrayEquals(new long[] { 1, 3, 13 }, server.minus(local).toArray());
+        assertTrue(local.minus(local).isEmpty());
+        assertArrayEquals(local.toArray(), local.minus(new UidSet()).toArray());
+    }
+
+    @Test
+    public void testMinusLarge() {
+        final UidSet local = new UidSet();
+        final UidSet server = new UidSet();
+
+        for (long uid = 1; uid <= 100000; uid++) {
+            local.add(uid);
+            if (uid % 10 != 0) {
+                server.add(uid);
+            }
+        }
+
+        final UidSet expunged = local.minus(server);
+        assertEquals(10000, expunged.size());
+        assertEquals(10, expunged.get(0));
+        assertEquals(100000, expunged.get(9999));
+    }
+}